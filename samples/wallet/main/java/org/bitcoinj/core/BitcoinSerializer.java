@@ -185,11 +185,20 @@ public class BitcoinSerializer extends MessageSerializer {
     /**
      * Deserialize payload only.  You must provide a header, typically obtained by calling
      * {@link BitcoinSerializer#deserializeHeader}.
+     *
+     * <p>If the buffer wraps an array holding exactly the payload, as is the case for messages larger than the read
+     * buffer of the connection (blocks and headers during the initial download), the message is parsed from that array
+     * directly instead of from a copy.</p>
      */
     @Override
     public Message deserializePayload(BitcoinPacketHeader header, ByteBuffer in) throws ProtocolException, BufferUnderflowException {
-        byte[] payloadBytes = new byte[header.size];
-        in.get(payloadBytes, 0, header.size);
+        byte[] payloadBytes = wrappedPayload(in, header.size);
+        if (payloadBytes != null) {
+            in.position(in.position() + header.size);
+        } else {
+            payloadBytes = new byte[header.size];
+            in.get(payloadBytes, 0, header.size);
+        }
 
         // Verify the checksum.
         byte[] hash;
@@ -213,6 +222,16 @@ public class BitcoinSerializer extends MessageSerializer {
         }
     }
 
+    /** Returns the array backing the given buffer if its remaining bytes are that whole array, or null otherwise. */
+    private static byte[] wrappedPayload(ByteBuffer in, int size) {
+        if (!in.hasArray() || in.isReadOnly())
+            return null;
+        byte[] array = in.array();
+        if (in.arrayOffset() + in.position() != 0 || in.remaining() != size || array.length != size)
+            return null;
+        return array;
+    }
+
     private Message makeMessage(String command, int length, byte[] payloadBytes, byte[] hash, byte[] checksum) throws ProtocolException {
         // We use an if ladder rather than reflection because reflection is very slow on Android.
         Message message;
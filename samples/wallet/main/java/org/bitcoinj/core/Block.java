@@ -28,7 +28,10 @@ import javax.annotation.*;
 import java.io.*;
 import java.math.*;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkState;
 import static org.bitcoinj.core.Coin.*;
 import static org.bitcoinj.core.Sha256Hash.*;
@@ -91,6 +94,12 @@ public class Block extends Message {
     /** Block version introduced in BIP 65: OP_CHECKLOCKTIMEVERIFY */
     public static final long BLOCK_VERSION_BIP65 = 4;
 
+    /** Default for {@link #setParallelVerificationThreshold(int)}. */
+    public static final int DEFAULT_PARALLEL_VERIFICATION_THRESHOLD = 1000;
+    // Number of transactions or merkle nodes a fork-join task handles without splitting further.
+    private static final int PARALLEL_CHUNK_SIZE = 64;
+    private static volatile int parallelVerificationThreshold = DEFAULT_PARALLEL_VERIFICATION_THRESHOLD;
+
     // Fields defined as part of the protocol format.
     private long version;
     private Sha256Hash prevBlockHash;
@@ -253,7 +262,7 @@ public class Block extends Message {
         time = readUint32();
         difficultyTarget = readUint32();
         nonce = readUint32();
-        hash = Sha256Hash.wrapReversed(Sha256Hash.hashTwice(payload, offset, cursor - offset));
+        hash = Sha256Hash.twiceOfReversed(payload, offset, cursor - offset);
         headerBytesValid = serializer.isParseRetainMode();
 
         // transactions
@@ -386,6 +395,7 @@ public class Block extends Message {
         unCacheHeader();
         // Clear merkleRoot last as it may end up being parsed during unCacheHeader().
         merkleRoot = null;
+        witnessRoot = null;
     }
 
     /**
@@ -396,7 +406,7 @@ public class Block extends Message {
         try {
             ByteArrayOutputStream bos = new UnsafeByteArrayOutputStream(HEADER_SIZE);
             writeHeader(bos);
-            return Sha256Hash.wrapReversed(Sha256Hash.hashTwice(bos.toByteArray()));
+            return Sha256Hash.twiceOfReversed(bos.toByteArray());
         } catch (IOException e) {
             throw new RuntimeException(e); // Cannot happen.
         }
@@ -566,8 +576,16 @@ public class Block extends Message {
             throw new VerificationException("Block had too many Signature Operations");
     }
 
-    private void checkMerkleRoot() throws VerificationException {
-        Sha256Hash calculatedRoot = calculateMerkleRoot();
+    private void checkMerkleRoot(boolean parallel) throws VerificationException {
+        // If the block commits to its witnesses, calculate the witness root in the same pass over the transactions,
+        // as checking the commitment is going to need it.
+        final int size = transactions.size();
+        final byte[][] txIdLeaves = new byte[size][];
+        final byte[][] wTxIdLeaves = transactions.get(0).findWitnessCommitment() != null ? new byte[size][] : null;
+        calculateMerkleLeaves(txIdLeaves, wTxIdLeaves, parallel);
+        Sha256Hash calculatedRoot = merkleRootOf(buildMerkleTree(txIdLeaves, parallel));
+        if (wTxIdLeaves != null)
+            witnessRoot = merkleRootOf(buildMerkleTree(wTxIdLeaves, parallel));
         if (!calculatedRoot.equals(merkleRoot)) {
             log.error("Merkle tree did not verify");
             throw new VerificationException("Merkle hashes do not match: " + calculatedRoot + " vs " + merkleRoot);
@@ -601,16 +619,44 @@ public class Block extends Message {
     }
 
     private Sha256Hash calculateMerkleRoot() {
-        List<byte[]> tree = buildMerkleTree(false);
-        return Sha256Hash.wrap(tree.get(tree.size() - 1));
+        byte[][] leaves = new byte[transactions.size()][];
+        boolean parallel = isParallelVerification();
+        calculateMerkleLeaves(leaves, null, parallel);
+        return merkleRootOf(buildMerkleTree(leaves, parallel));
     }
 
     private Sha256Hash calculateWitnessRoot() {
-        List<byte[]> tree = buildMerkleTree(true);
-        return Sha256Hash.wrap(tree.get(tree.size() - 1));
+        byte[][] leaves = new byte[transactions.size()][];
+        boolean parallel = isParallelVerification();
+        calculateMerkleLeaves(null, leaves, parallel);
+        return merkleRootOf(buildMerkleTree(leaves, parallel));
+    }
+
+    private static Sha256Hash merkleRootOf(List<byte[]> tree) {
+        return Sha256Hash.wrapReversed(tree.get(tree.size() - 1));
+    }
+
+    /**
+     * Fills the given arrays with the leaves of the transaction id and witness id merkle trees, in internal byte
+     * order. Either array may be null if that tree isn't needed. Serializing and hashing the transactions is the
+     * expensive part of building the trees, so for large blocks this is spread over the fork-join pool.
+     */
+    private void calculateMerkleLeaves(@Nullable final byte[][] txIdLeaves, @Nullable final byte[][] wTxIdLeaves,
+                                       boolean parallel) {
+        forEachIndex(transactions.size(), parallel, new IndexedTask() {
+            @Override
+            public void run(int index) {
+                Transaction tx = transactions.get(index);
+                if (txIdLeaves != null)
+                    txIdLeaves[index] = tx.getTxId().getReversedBytes();
+                if (wTxIdLeaves != null)
+                    wTxIdLeaves[index] = tx.isCoinBase() ? new byte[Sha256Hash.LENGTH]
+                            : tx.getWTxId().getReversedBytes();
+            }
+        });
     }
 
-    private List<byte[]> buildMerkleTree(boolean useWTxId) {
+    private static List<byte[]> buildMerkleTree(byte[][] leaves, boolean parallel) {
         // The Merkle root is based on a tree of hashes calculated from the transactions:
         //
         //     root
@@ -641,28 +687,36 @@ public class Block extends Message {
         //    2     3    4  4
         //  / \   / \   / \
         // t1 t2 t3 t4 t5 t5
-        ArrayList<byte[]> tree = new ArrayList<>(transactions.size());
+        //
+        // The hashes are kept in their internal (hashed) byte order, so interior nodes can be computed straight
+        // from their children and only the root needs to be reversed.
+        //
+        // Each level only depends on the one below it, so in parallel mode the nodes of a level are hashed
+        // concurrently.
+        final ArrayList<byte[]> tree = new ArrayList<>(leaves.length * 2);
         // Start by adding all the hashes of the transactions as leaves of the tree.
-        for (Transaction tx : transactions) {
-            final Sha256Hash id;
-            if (useWTxId && tx.isCoinBase())
-                id = Sha256Hash.ZERO_HASH;
-            else
-                id = useWTxId ? tx.getWTxId() : tx.getTxId();
-            tree.add(id.getBytes());
-        }
+        tree.addAll(Arrays.asList(leaves));
         int levelOffset = 0; // Offset in the list where the currently processed level starts.
         // Step through each level, stopping when we reach the root (levelSize == 1).
-        for (int levelSize = transactions.size(); levelSize > 1; levelSize = (levelSize + 1) / 2) {
+        for (int levelSize = leaves.length; levelSize > 1; levelSize = (levelSize + 1) / 2) {
+            final int offset = levelOffset;
+            final int size = levelSize;
+            final byte[][] level = new byte[(levelSize + 1) / 2][];
             // For each pair of nodes on that level:
-            for (int left = 0; left < levelSize; left += 2) {
-                // The right hand node can be the same as the left hand, in the case where we don't have enough
-                // transactions.
-                int right = Math.min(left + 1, levelSize - 1);
-                byte[] leftBytes = Utils.reverseBytes(tree.get(levelOffset + left));
-                byte[] rightBytes = Utils.reverseBytes(tree.get(levelOffset + right));
-                tree.add(Utils.reverseBytes(hashTwice(leftBytes, rightBytes)));
-            }
+            forEachIndex(level.length, parallel, new IndexedTask() {
+                @Override
+                public void run(int index) {
+                    int left = index * 2;
+                    // The right hand node can be the same as the left hand, in the case where we don't have enough
+                    // transactions.
+                    int right = Math.min(left + 1, size - 1);
+                    byte[] node = new byte[Sha256Hash.LENGTH];
+                    hashTwice(tree.get(offset + left), 0, Sha256Hash.LENGTH,
+                            tree.get(offset + right), 0, Sha256Hash.LENGTH, node, 0);
+                    level[index] = node;
+                }
+            });
+            tree.addAll(Arrays.asList(level));
             // Move to the next level.
             levelOffset += levelSize;
         }
@@ -685,10 +739,14 @@ public class Block extends Message {
             transactions.get(0).checkCoinBaseHeight(height);
         }
         // The rest must not be.
-        for (int i = 1; i < transactions.size(); i++) {
-            if (transactions.get(i).isCoinBase())
-                throw new VerificationException("TX " + i + " is coinbase when it should not be.");
-        }
+        forEachIndex(transactions.size() - 1, isParallelVerification(), new IndexedTask() {
+            @Override
+            public void run(int index) {
+                int i = index + 1;
+                if (transactions.get(i).isCoinBase())
+                    throw new VerificationException("TX " + i + " is coinbase when it should not be.");
+            }
+        });
     }
 
     /**
@@ -728,11 +786,111 @@ public class Block extends Message {
         if (this.getOptimalEncodingMessageSize() > MAX_BLOCK_SIZE)
             throw new VerificationException("Block larger than MAX_BLOCK_SIZE");
         checkTransactions(height, flags);
-        checkMerkleRoot();
+        final boolean parallel = isParallelVerification();
+        checkMerkleRoot(parallel);
         checkSigOps();
-        for (Transaction transaction : transactions)
-            transaction.verify();
+        forEachIndex(transactions.size(), parallel, new IndexedTask() {
+            @Override
+            public void run(int index) {
+                transactions.get(index).verify();
+            }
+        });
+    }
+
+    /**
+     * Sets the number of transactions from which blocks are verified in parallel: their transaction ids, merkle
+     * trees, coinbase checks and per transaction checks are then computed on the common fork-join pool. Smaller blocks are not worth
+     * the overhead. Use {@link Integer#MAX_VALUE} to always verify sequentially.
+     */
+    public static void setParallelVerificationThreshold(int threshold) {
+        checkArgument(threshold > 0);
+        parallelVerificationThreshold = threshold;
+    }
+
+    /** Returns the number of transactions from which blocks are verified in parallel. */
+    public static int getParallelVerificationThreshold() {
+        return parallelVerificationThreshold;
+    }
+
+    private boolean isParallelVerification() {
+        return transactions.size() >= parallelVerificationThreshold;
+    }
+
+    private interface IndexedTask {
+        void run(int index);
+    }
+
+    /**
+     * Runs the task for each index in [0, size), either sequentially or on the common fork-join pool. In both cases
+     * the exception of the lowest failing index is thrown, so that a block fails verification the same way whichever
+     * the mode.
+     */
+    private static void forEachIndex(int size, boolean parallel, IndexedTask task) {
+        if (!parallel || size <= PARALLEL_CHUNK_SIZE) {
+            for (int i = 0; i < size; i++)
+                task.run(i);
+            return;
+        }
+        IndexRange range = new IndexRange(task, 0, size, new FirstFailure());
+        ForkJoinPool.commonPool().invoke(range);
+        range.failure.rethrow();
+    }
+
+    private static class FirstFailure {
+        private int index = Integer.MAX_VALUE;
+        private RuntimeException exception;
+
+        synchronized void record(int index, RuntimeException exception) {
+            if (index < this.index) {
+                this.index = index;
+                this.exception = exception;
+            }
+        }
+
+        synchronized boolean before(int index) {
+            return this.index < index;
+        }
+
+        synchronized void rethrow() {
+            if (exception != null)
+                throw exception;
         }
+    }
+
+    private static class IndexRange extends RecursiveAction {
+        private static final long serialVersionUID = -7531222914890091165L;
+
+        private final IndexedTask task;
+        private final int from, to;
+        private final FirstFailure failure;
+
+        IndexRange(IndexedTask task, int from, int to, FirstFailure failure) {
+            this.task = task;
+            this.from = from;
+            this.to = to;
+            this.failure = failure;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > PARALLEL_CHUNK_SIZE) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new IndexRange(task, from, mid, failure), new IndexRange(task, mid, to, failure));
+                return;
+            }
+            for (int i = from; i < to; i++) {
+                // No point in going on if an earlier index already failed.
+                if (failure.before(i))
+                    return;
+                try {
+                    task.run(i);
+                } catch (RuntimeException e) {
+                    failure.record(i, e);
+                    return;
+                }
+            }
+        }
+    }
 
     /**
      * Verifies both the header and that the transactions hash to the merkle root.
@@ -27,8 +27,10 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.List;
 import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 import static com.google.common.base.Preconditions.checkArgument;
 import static java.lang.Math.*;
@@ -43,7 +45,10 @@ import static java.lang.Math.*;
  * a useful privacy feature - if you have spare bandwidth the false positive rate can be increased so the remote peer
  * gets a noisy picture of what transactions are relevant to your wallet.</p>
  * 
- * <p>Instances of this class are not safe for use by multiple threads.</p>
+ * <p>Instances of this class are safe for use by multiple threads. The filter bits are kept in an atomic array, so
+ * {@link #contains(byte[])} and {@link #insert(byte[])} don't take any lock. {@link #setMatchAll()} and
+ * {@link #merge(BloomFilter)} into a filter that matches all replace the whole array, so inserts racing with them may
+ * be lost, which is harmless as the filter then matches everything anyway.</p>
  */
 public class BloomFilter extends Message {
     /** The BLOOM_UPDATE_* constants control when the bloom filter is auto-updated by the peer using
@@ -55,7 +60,7 @@ public class BloomFilter extends Message {
         UPDATE_P2PUBKEY_ONLY //2
     }
     
-    private byte[] data;
+    private volatile Bits bits;
     private long hashFuncs;
     private long nTweak;
     private byte nFlags;
@@ -114,25 +119,35 @@ public class BloomFilter extends Message {
         //                        Size required for a given number of elements and false-positive rate
         int size = (int)(-1  / (pow(log(2), 2)) * elements * log(falsePositiveRate));
         size = max(1, min(size, (int) MAX_FILTER_SIZE * 8) / 8);
-        data = new byte[size];
+        bits = new Bits(size);
         // Optimal number of hash functions for a given filter size and element count.
-        hashFuncs = (int)(data.length * 8 / (double)elements * log(2));
+        hashFuncs = (int)(size * 8 / (double)elements * log(2));
         hashFuncs = max(1, min(hashFuncs, MAX_HASH_FUNCS));
         this.nTweak = randomNonce;
         this.nFlags = (byte)(0xff & updateFlag.ordinal());
     }
     
+    /**
+     * Constructs a copy of the given filter, which can then be updated independently of it.
+     */
+    public BloomFilter(BloomFilter filter) {
+        this.bits = new Bits(filter.bits.toBytes());
+        this.hashFuncs = filter.hashFuncs;
+        this.nTweak = filter.nTweak;
+        this.nFlags = filter.nFlags;
+    }
+
     /**
      * Returns the theoretical false positive rate of this filter if were to contain the given number of elements.
      */
     public double getFalsePositiveRate(int elements) {
-        return pow(1 - pow(E, -1.0 * (hashFuncs * elements) / (data.length * 8)), hashFuncs);
+        return pow(1 - pow(E, -1.0 * (hashFuncs * elements) / (bits.byteLength * 8)), hashFuncs);
     }
 
     @Override
     public String toString() {
         final MoreObjects.ToStringHelper helper = MoreObjects.toStringHelper(this).omitNullValues();
-        helper.add("data length", data.length);
+        helper.add("data length", bits.byteLength);
         helper.add("hashFuncs", hashFuncs);
         helper.add("nFlags", getUpdateFlag());
         return helper.toString();
@@ -140,9 +155,10 @@ public class BloomFilter extends Message {
 
     @Override
     protected void parse() throws ProtocolException {
-        data = readByteArray();
+        byte[] data = readByteArray();
         if (data.length > MAX_FILTER_SIZE)
             throw new ProtocolException ("Bloom filter out of size range.");
+        bits = new Bits(data);
         hashFuncs = readUint32();
         if (hashFuncs > MAX_HASH_FUNCS)
             throw new ProtocolException("Bloom filter hash function count out of range");
@@ -156,6 +172,7 @@ public class BloomFilter extends Message {
      */
     @Override
     protected void bitcoinSerializeToStream(OutputStream stream) throws IOException {
+        byte[] data = bits.toBytes();
         stream.write(new VarInt(data.length).encode());
         stream.write(data);
         Utils.uint32ToByteStreamLE(hashFuncs, stream);
@@ -222,32 +239,125 @@ public class BloomFilter extends Message {
         return (int)((h1&0xFFFFFFFFL) % (data.length * 8));
     }
     
+    /**
+     * Mixes the 4-byte blocks (and the tail) of the given object as MurmurHash3 does. This part of the hash doesn't
+     * depend on the seed, so it is done once per object and shared by all the hash functions of the filter. The tail
+     * is the last element of the returned array.
+     */
+    private static int[] mixBlocks(byte[] object) {
+        final int c1 = 0xcc9e2d51;
+        final int c2 = 0x1b873593;
+
+        int numBlocks = object.length / 4;
+        int[] mixed = new int[numBlocks + 1];
+        for (int block = 0; block < numBlocks; block++) {
+            int i = block * 4;
+            int k1 = (object[i] & 0xFF) |
+                  ((object[i+1] & 0xFF) << 8) |
+                  ((object[i+2] & 0xFF) << 16) |
+                  ((object[i+3] & 0xFF) << 24);
+
+            k1 *= c1;
+            k1 = rotateLeft32(k1, 15);
+            k1 *= c2;
+            mixed[block] = k1;
+        }
+
+        int k1 = 0;
+        int tail = numBlocks * 4;
+        switch(object.length & 3)
+        {
+            case 3:
+                k1 ^= (object[tail + 2] & 0xff) << 16;
+                // Fall through.
+            case 2:
+                k1 ^= (object[tail + 1] & 0xff) << 8;
+                // Fall through.
+            case 1:
+                k1 ^= (object[tail] & 0xff);
+                k1 *= c1; k1 = rotateLeft32(k1, 15); k1 *= c2;
+                // Fall through.
+            default:
+                // Do nothing.
+                break;
+        }
+        mixed[numBlocks] = k1;  // Xoring a zero tail into the hash is a no-op, just like skipping it.
+        return mixed;
+    }
+
+    /**
+     * Finishes the MurmurHash3 of an object mixed by {@link #mixBlocks(byte[])} for the given hash function, giving
+     * the same bit index as {@link #murmurHash3(byte[], long, int, byte[])}.
+     */
+    private static int murmurHash3(int[] mixed, int objectLength, long nTweak, int hashNum, int bitLength) {
+        int h1 = (int)(hashNum * 0xFBA4C795L + nTweak);
+        int numBlocks = mixed.length - 1;
+        for (int block = 0; block < numBlocks; block++) {
+            h1 ^= mixed[block];
+            h1 = rotateLeft32(h1, 13);
+            h1 = h1*5+0xe6546b64;
+        }
+        h1 ^= mixed[numBlocks];
+
+        // finalization
+        h1 ^= objectLength;
+        h1 ^= h1 >>> 16;
+        h1 *= 0x85ebca6b;
+        h1 ^= h1 >>> 13;
+        h1 *= 0xc2b2ae35;
+        h1 ^= h1 >>> 16;
+
+        return (int)((h1&0xFFFFFFFFL) % bitLength);
+    }
+
     /**
      * Returns true if the given object matches the filter either because it was inserted, or because we have a
      * false-positive.
      */
-    public synchronized boolean contains(byte[] object) {
+    public boolean contains(byte[] object) {
+        final Bits bits = this.bits;
+        final int[] mixed = mixBlocks(object);
         for (int i = 0; i < hashFuncs; i++) {
-            if (!Utils.checkBitLE(data, murmurHash3(data, nTweak, i, object)))
+            if (!bits.get(murmurHash3(mixed, object.length, nTweak, i, bits.bitLength())))
                 return false;
         }
         return true;
     }
-    
+
+    /** Returns true if all of the given objects match the filter. */
+    public boolean containsAll(Collection<byte[]> objects) {
+        for (byte[] object : objects) {
+            if (!contains(object))
+                return false;
+        }
+        return true;
+    }
+
     /** Insert the given arbitrary data into the filter */
-    public synchronized void insert(byte[] object) {
+    public void insert(byte[] object) {
+        final Bits bits = this.bits;
+        final int[] mixed = mixBlocks(object);
         for (int i = 0; i < hashFuncs; i++)
-            Utils.setBitLE(data, murmurHash3(data, nTweak, i, object));
+            bits.set(murmurHash3(mixed, object.length, nTweak, i, bits.bitLength()));
+    }
+
+    /**
+     * Inserts all of the given objects. The bit positions of each object are computed in a single pass over its data,
+     * for all hash functions at once, and then set without taking any lock.
+     */
+    public void insertAll(Collection<byte[]> objects) {
+        for (byte[] object : objects)
+            insert(object);
     }
 
     /** Inserts the given key and equivalent hashed form (for the address). */
-    public synchronized void insert(ECKey key) {
+    public void insert(ECKey key) {
         insert(key.getPubKey());
         insert(key.getPubKeyHash());
     }
 
     /** Inserts the given transaction outpoint. */
-    public synchronized void insert(TransactionOutPoint outpoint) {
+    public void insert(TransactionOutPoint outpoint) {
         insert(outpoint.unsafeBitcoinSerialize());
     }
 
@@ -258,23 +368,24 @@ public class BloomFilter extends Message {
      * Solved blocks will then be send just as Merkle trees of tx hashes, meaning a constant 32 bytes of data for each
      * transaction instead of 100-300 bytes as per usual.
      */
-    public synchronized void setMatchAll() {
-        data = new byte[] {(byte) 0xff};
+    public void setMatchAll() {
+        bits = new Bits(new byte[] {(byte) 0xff});
     }
 
     /**
      * Copies filter into this. Filter must have the same size, hash function count and nTweak or an
      * IllegalArgumentException will be thrown.
      */
-    public synchronized void merge(BloomFilter filter) {
+    public void merge(BloomFilter filter) {
         if (!this.matchesAll() && !filter.matchesAll()) {
-            checkArgument(filter.data.length == this.data.length &&
+            final Bits ours = this.bits, theirs = filter.bits;
+            checkArgument(theirs.byteLength == ours.byteLength &&
                           filter.hashFuncs == this.hashFuncs &&
                           filter.nTweak == this.nTweak);
-            for (int i = 0; i < data.length; i++)
-                this.data[i] |= filter.data[i];
+            for (int i = 0; i < ours.words.length(); i++)
+                ours.or(i, theirs.words.get(i));
         } else {
-            this.data = new byte[] {(byte) 0xff};
+            setMatchAll();
         }
     }
 
@@ -282,9 +393,10 @@ public class BloomFilter extends Message {
      * Returns true if this filter will match anything. See {@link BloomFilter#setMatchAll()}
      * for when this can be a useful thing to do.
      */
-    public synchronized boolean matchesAll() {
-        for (byte b : data)
-            if (b != (byte) 0xff)
+    public boolean matchesAll() {
+        final Bits bits = this.bits;
+        for (int i = 0; i < bits.byteLength; i++)
+            if (bits.getByte(i) != (byte) 0xff)
                 return false;
         return true;
     }
@@ -293,7 +405,7 @@ public class BloomFilter extends Message {
      * The update flag controls how application of the filter to a block modifies the filter. See the enum javadocs
      * for information on what occurs and when.
      */
-    public synchronized BloomUpdate getUpdateFlag() {
+    public BloomUpdate getUpdateFlag() {
         if (nFlags == 0)
             return BloomUpdate.UPDATE_NONE;
         else if (nFlags == 1)
@@ -310,7 +422,7 @@ public class BloomFilter extends Message {
      * matched transactions are also matched. However it means this filter can be mutated by the operation. The returned
      * filtered block already has the matched transactions associated with it.
      */
-    public synchronized FilteredBlock applyAndUpdate(Block block) {
+    public FilteredBlock applyAndUpdate(Block block) {
         List<Transaction> txns = block.getTransactions();
         List<Sha256Hash> txHashes = new ArrayList<>(txns.size());
         List<Transaction> matched = new ArrayList<>();
@@ -330,7 +442,7 @@ public class BloomFilter extends Message {
         return filteredBlock;
     }
 
-    public synchronized boolean applyAndUpdate(Transaction tx) {
+    public boolean applyAndUpdate(Transaction tx) {
         if (contains(tx.getTxId().getBytes()))
             return true;
         boolean found = false;
@@ -362,15 +474,68 @@ public class BloomFilter extends Message {
     }
     
     @Override
-    public synchronized boolean equals(Object o) {
+    public boolean equals(Object o) {
         if (this == o) return true;
         if (o == null || getClass() != o.getClass()) return false;
         BloomFilter other = (BloomFilter) o;
-        return hashFuncs == other.hashFuncs && nTweak == other.nTweak && Arrays.equals(data, other.data);
+        return hashFuncs == other.hashFuncs && nTweak == other.nTweak
+                && Arrays.equals(bits.toBytes(), other.bits.toBytes());
     }
 
     @Override
-    public synchronized int hashCode() {
-        return Objects.hash(hashFuncs, nTweak, Arrays.hashCode(data));
+    public int hashCode() {
+        return Objects.hash(hashFuncs, nTweak, Arrays.hashCode(bits.toBytes()));
+    }
+
+    /**
+     * The filter bits, packed into longs in the same little endian bit order as the serialized byte array (bit n of the
+     * filter is bit n % 64 of word n / 64), so that they can be set with a compare-and-swap.
+     */
+    private static final class Bits {
+        final AtomicLongArray words;
+        final int byteLength;
+
+        Bits(int byteLength) {
+            this.byteLength = byteLength;
+            this.words = new AtomicLongArray((byteLength + 7) / 8);
+        }
+
+        Bits(byte[] data) {
+            this(data.length);
+            for (int i = 0; i < data.length; i++)
+                or(i >>> 3, (data[i] & 0xffL) << ((i & 7) * 8));
+        }
+
+        int bitLength() {
+            return byteLength * 8;
+        }
+
+        boolean get(int index) {
+            return (words.get(index >>> 6) & (1L << (index & 63))) != 0;
+        }
+
+        void set(int index) {
+            or(index >>> 6, 1L << (index & 63));
+        }
+
+        void or(int word, long mask) {
+            long current;
+            do {
+                current = words.get(word);
+                if ((current | mask) == current)
+                    return;
+            } while (!words.compareAndSet(word, current, current | mask));
+        }
+
+        byte getByte(int i) {
+            return (byte) (words.get(i >>> 3) >>> ((i & 7) * 8));
+        }
+
+        byte[] toBytes() {
+            byte[] data = new byte[byteLength];
+            for (int i = 0; i < byteLength; i++)
+                data[i] = getByte(i);
+            return data;
+        }
     }
 }
@@ -31,9 +31,12 @@ import org.slf4j.LoggerFactory;
 import javax.annotation.Nullable;
 import java.io.File;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.ListIterator;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.*;
 
@@ -148,9 +151,80 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
 
     // TODO: Remove lots of duplicated code in the two connectTransactions
 
-    // TODO: execute in order of largest transaction (by input count) first
-    ExecutorService scriptVerificationExecutor = Executors.newFixedThreadPool(
-            Runtime.getRuntime().availableProcessors(), new ContextPropagatingThreadFactory("Script verification"));
+    // Runs the script verification of each transaction, as well as building the UTXOs its outputs create. It is work
+    // stealing, as the cost of transactions varies wildly with their number of inputs.
+    ExecutorService scriptVerificationExecutor = createScriptVerificationExecutor();
+
+    private static ExecutorService createScriptVerificationExecutor() {
+        return new ForkJoinPool(Runtime.getRuntime().availableProcessors(),
+                new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+                    @Override
+                    public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+                        final Context context = Context.get();
+                        ForkJoinWorkerThread thread = new ForkJoinWorkerThread(pool) {
+                            @Override
+                            protected void onStart() {
+                                super.onStart();
+                                Context.propagate(context);
+                            }
+                        };
+                        thread.setName("Script verification");
+                        return thread;
+                    }
+                }, Threading.uncaughtExceptionHandler, true);
+    }
+
+    /**
+     * A job submitted to the executor which builds the {@link UTXO}s created by a transaction. Parsing the output
+     * scripts and deriving their addresses doesn't depend on the UTXO set, so it is done ahead of the serial walk
+     * over the block's transactions.
+     */
+    private class OutputsBuilder implements Callable<List<UTXO>> {
+        final Transaction tx;
+        final int height;
+
+        public OutputsBuilder(final Transaction tx, final int height) {
+            this.tx = tx;
+            this.height = height;
+        }
+
+        @Override
+        public List<UTXO> call() {
+            Sha256Hash hash = tx.getTxId();
+            boolean isCoinBase = tx.isCoinBase();
+            List<UTXO> outputs = new ArrayList<>(tx.getOutputs().size());
+            for (TransactionOutput out : tx.getOutputs()) {
+                Script script = getScript(out.getScriptBytes());
+                outputs.add(new UTXO(hash,
+                        out.getIndex(),
+                        out.getValue(),
+                        height, isCoinBase,
+                        script,
+                        getScriptAddress(script)));
+            }
+            return outputs;
+        }
+    }
+
+    /**
+     * Starts building the UTXOs created by each of the given transactions, see {@link OutputsBuilder}.
+     */
+    private List<Future<List<UTXO>>> buildOutputs(List<Transaction> transactions, int height) {
+        List<Future<List<UTXO>>> results = new ArrayList<>(transactions.size());
+        for (Transaction tx : transactions)
+            results.add(scriptVerificationExecutor.submit(new OutputsBuilder(tx, height)));
+        return results;
+    }
+
+    private static List<UTXO> getOutputs(Future<List<UTXO>> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e); // Shouldn't happen
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+    }
 
     /**
      * A job submitted to the executor which verifies signatures.
@@ -181,6 +255,52 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
         }
     }
 
+    /**
+     * The unspent outputs seen by the transactions of a block while it is being connected. Instead of one store
+     * round trip per input and per output, the outputs the block spends are fetched from the store in one batch up
+     * front, and the changes are written back in one batch at the end. Outputs both created and spent within the
+     * block never reach the store.
+     */
+    private class BlockUTXOView {
+        private final Map<TransactionOutPoint, UTXO> fetched = new HashMap<>();
+        private final Map<TransactionOutPoint, UTXO> created = new LinkedHashMap<>();
+        private final List<UTXO> spentFromStore = new ArrayList<>();
+
+        BlockUTXOView(List<Transaction> transactions) throws BlockStoreException {
+            List<TransactionOutPoint> outPoints = new ArrayList<>();
+            for (Transaction tx : transactions)
+                if (!tx.isCoinBase())
+                    for (TransactionInput in : tx.getInputs())
+                        outPoints.add(in.getOutpoint());
+            List<UTXO> outs = blockStore.getTransactionOutputs(outPoints);
+            for (int i = 0; i < outPoints.size(); i++)
+                if (outs.get(i) != null)
+                    fetched.put(outPoints.get(i), outs.get(i));
+        }
+
+        /** Spends the given output, returning it, or null if it doesn't exist or was already spent. */
+        @Nullable
+        UTXO spend(TransactionOutPoint outPoint) {
+            UTXO out = created.remove(outPoint);
+            if (out == null) {
+                out = fetched.remove(outPoint);
+                if (out != null)
+                    spentFromStore.add(out);
+            }
+            return out;
+        }
+
+        void add(UTXO out) {
+            created.put(new TransactionOutPoint(params, out.getIndex(), out.getHash()), out);
+        }
+
+        /** Writes the changes back to the store. */
+        void flush() throws BlockStoreException {
+            blockStore.removeUnspentTransactionOutputs(spentFromStore);
+            blockStore.addUnspentTransactionOutputs(new ArrayList<>(created.values()));
+        }
+    }
+
     /**
      * Get the {@link Script} from the script bytes or return Script of empty byte array.
      */
@@ -225,7 +345,7 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
         long sigOps = 0;
 
         if (scriptVerificationExecutor.isShutdown())
-            scriptVerificationExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+            scriptVerificationExecutor = createScriptVerificationExecutor();
 
         List<Future<VerificationException>> listScriptVerificationResults = new ArrayList<>(block.getTransactions().size());
         try {
@@ -246,6 +366,10 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
             }
             Coin totalFees = Coin.ZERO;
             Coin coinbaseValue = null;
+            // The created outputs are built on the executor while the UTXO set is being walked below.
+            ListIterator<Future<List<UTXO>>> createdOutputsIt =
+                    buildOutputs(block.getTransactions(), height).listIterator();
+            BlockUTXOView utxoView = new BlockUTXOView(block.getTransactions());
             for (final Transaction tx : block.getTransactions()) {
                 boolean isCoinBase = tx.isCoinBase();
                 Coin valueIn = Coin.ZERO;
@@ -257,8 +381,7 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                     // outputs.
                     for (int index = 0; index < tx.getInputs().size(); index++) {
                         TransactionInput in = tx.getInputs().get(index);
-                        UTXO prevOut = blockStore.getTransactionOutput(in.getOutpoint().getHash(),
-                                in.getOutpoint().getIndex());
+                        UTXO prevOut = utxoView.spend(in.getOutpoint());
                         if (prevOut == null)
                             throw new VerificationException("Attempted to spend a non-existent or already spent output!");
                         // Coinbases can't be spent until they mature, to avoid re-orgs destroying entire transaction
@@ -279,22 +402,13 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                         }
 
                         prevOutScripts.add(prevOut.getScript());
-                        blockStore.removeUnspentTransactionOutput(prevOut);
                         txOutsSpent.add(prevOut);
                     }
                 }
-                Sha256Hash hash = tx.getTxId();
-                for (TransactionOutput out : tx.getOutputs()) {
-                    valueOut = valueOut.add(out.getValue());
+                for (UTXO newOut : getOutputs(createdOutputsIt.next())) {
+                    valueOut = valueOut.add(newOut.getValue());
                     // For each output, add it to the set of unspent outputs so it can be consumed in future.
-                    Script script = getScript(out.getScriptBytes());
-                    UTXO newOut = new UTXO(hash,
-                            out.getIndex(),
-                            out.getValue(),
-                            height, isCoinBase,
-                            script,
-                            getScriptAddress(script));
-                    blockStore.addUnspentTransactionOutput(newOut);
+                    utxoView.add(newOut);
                     txOutsCreated.add(newOut);
                 }
                 // All values were already checked for being non-negative (as it is verified in Transaction.verify())
@@ -318,6 +432,8 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
             }
             if (totalFees.compareTo(params.getMaxMoney()) > 0 || block.getBlockInflation(height).add(totalFees).compareTo(coinbaseValue) < 0)
                 throw new VerificationException("Transaction fees out of range");
+            // Write to the store while the scripts are still being verified.
+            utxoView.flush();
             for (Future<VerificationException> future : listScriptVerificationResults) {
                 VerificationException e;
                 try {
@@ -375,8 +491,11 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                 Coin coinbaseValue = null;
 
                 if (scriptVerificationExecutor.isShutdown())
-                    scriptVerificationExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+                    scriptVerificationExecutor = createScriptVerificationExecutor();
                 List<Future<VerificationException>> listScriptVerificationResults = new ArrayList<>(transactions.size());
+                ListIterator<Future<List<UTXO>>> createdOutputsIt =
+                        buildOutputs(transactions, newBlock.getHeight()).listIterator();
+                BlockUTXOView utxoView = new BlockUTXOView(transactions);
                 for (final Transaction tx : transactions) {
                     final Set<VerifyFlag> verifyFlags =
                         params.getTransactionVerificationFlags(newBlock.getHeader(), tx, getVersionTally(), Integer.SIZE);
@@ -388,8 +507,7 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                     if (!isCoinBase) {
                         for (int index = 0; index < tx.getInputs().size(); index++) {
                             final TransactionInput in = tx.getInputs().get(index);
-                            final UTXO prevOut = blockStore.getTransactionOutput(in.getOutpoint().getHash(),
-                                    in.getOutpoint().getIndex());
+                            final UTXO prevOut = utxoView.spend(in.getOutpoint());
                             if (prevOut == null)
                                 throw new VerificationException("Attempted spend of a non-existent or already spent output!");
                             if (prevOut.isCoinbase() && newBlock.getHeight() - prevOut.getHeight() < params.getSpendableCoinbaseDepth())
@@ -406,22 +524,12 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
 
                             prevOutScripts.add(prevOut.getScript());
 
-                            blockStore.removeUnspentTransactionOutput(prevOut);
                             txOutsSpent.add(prevOut);
                         }
                     }
-                    Sha256Hash hash = tx.getTxId();
-                    for (TransactionOutput out : tx.getOutputs()) {
-                        valueOut = valueOut.add(out.getValue());
-                        Script script = getScript(out.getScriptBytes());
-                        UTXO newOut = new UTXO(hash,
-                                out.getIndex(),
-                                out.getValue(),
-                                newBlock.getHeight(),
-                                isCoinBase,
-                                script,
-                                getScriptAddress(script));
-                        blockStore.addUnspentTransactionOutput(newOut);
+                    for (UTXO newOut : getOutputs(createdOutputsIt.next())) {
+                        valueOut = valueOut.add(newOut.getValue());
+                        utxoView.add(newOut);
                         txOutsCreated.add(newOut);
                     }
                     // All values were already checked for being non-negative (as it is verified in Transaction.verify())
@@ -446,6 +554,7 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                 if (totalFees.compareTo(params.getMaxMoney()) > 0 ||
                         newBlock.getHeader().getBlockInflation(newBlock.getHeight()).add(totalFees).compareTo(coinbaseValue) < 0)
                     throw new VerificationException("Transaction fees out of range");
+                utxoView.flush();
                 txOutChanges = new TransactionOutputChanges(txOutsCreated, txOutsSpent);
                 for (Future<VerificationException> future : listScriptVerificationResults) {
                     VerificationException e;
@@ -462,16 +571,16 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                 }
             } else {
                 txOutChanges = block.getTxOutChanges();
-                if (!params.isCheckpoint(newBlock.getHeight()))
-                    for (UTXO out : txOutChanges.txOutsCreated) {
-                        Sha256Hash hash = out.getHash();
-                        if (blockStore.getTransactionOutput(hash, out.getIndex()) != null)
+                if (!params.isCheckpoint(newBlock.getHeight())) {
+                    List<TransactionOutPoint> outPoints = new ArrayList<>(txOutChanges.txOutsCreated.size());
+                    for (UTXO out : txOutChanges.txOutsCreated)
+                        outPoints.add(new TransactionOutPoint(params, out.getIndex(), out.getHash()));
+                    for (UTXO out : blockStore.getTransactionOutputs(outPoints))
+                        if (out != null)
                             throw new VerificationException("Block failed BIP30 test!");
-                    }
-                for (UTXO out : txOutChanges.txOutsCreated)
-                    blockStore.addUnspentTransactionOutput(out);
-                for (UTXO out : txOutChanges.txOutsSpent)
-                    blockStore.removeUnspentTransactionOutput(out);
+                }
+                blockStore.addUnspentTransactionOutputs(txOutChanges.txOutsCreated);
+                blockStore.removeUnspentTransactionOutputs(txOutChanges.txOutsSpent);
             }
         } catch (VerificationException | BlockStoreException e) {
             scriptVerificationExecutor.shutdownNow();
@@ -493,10 +602,8 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
             StoredUndoableBlock undoBlock = blockStore.getUndoBlock(oldBlock.getHeader().getHash());
             if (undoBlock == null) throw new PrunedException(oldBlock.getHeader().getHash());
             TransactionOutputChanges txOutChanges = undoBlock.getTxOutChanges();
-            for (UTXO out : txOutChanges.txOutsSpent)
-                blockStore.addUnspentTransactionOutput(out);
-            for (UTXO out : txOutChanges.txOutsCreated)
-                blockStore.removeUnspentTransactionOutput(out);
+            blockStore.addUnspentTransactionOutputs(txOutChanges.txOutsSpent);
+            blockStore.removeUnspentTransactionOutputs(txOutChanges.txOutsCreated);
         } catch (PrunedException | BlockStoreException e) {
             blockStore.abortDatabaseBatchWrite();
             throw e;
@@ -168,7 +168,7 @@ public class PeerGroup implements TransactionBroadcaster {
 
     private final KeyChainEventListener walletKeyEventListener = new KeyChainEventListener() {
         @Override public void onKeysAdded(List<ECKey> keys) {
-            recalculateFastCatchupAndFilter(FilterRecalculateMode.SEND_IF_CHANGED);
+            updateFilterWithKeys(keys);
         }
     };
 
@@ -1304,6 +1304,52 @@ public class PeerGroup implements TransactionBroadcaster {
         return future;
     }
 
+    /**
+     * Inserts newly added keys into the current Bloom filter and sends it to the connected peers if it changed. This
+     * avoids recalculating the filters of all providers every time the lookahead of a wallet is extended. If the false
+     * positive rate would get out of budget (see {@link FilterMerger#insertKeys(ImmutableList, List)}), it falls back to
+     * {@link #recalculateFastCatchupAndFilter(FilterRecalculateMode)}.
+     */
+    private void updateFilterWithKeys(final List<ECKey> keys) {
+        Runnable command = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    go();
+                } catch (Throwable e) {
+                    log.error("Exception when trying to update Bloom filter", e);  // The executor swallows exceptions :(
+                }
+            }
+
+            public void go() {
+                checkState(!lock.isHeldByCurrentThread());
+                // Fully verifying mode doesn't use this optimization (it can't as it needs to see all transactions).
+                if ((chain != null && chain.shouldVerifyTransactions()) || !vBloomFilteringEnabled)
+                    return;
+                // Like calculate, insertKeys is only ever called on jobQueue.
+                FilterMerger.Result result = bloomFilterMerger.insertKeys(
+                        ImmutableList.copyOf(peerFilterProviders /* COW */), keys);
+                if (result == null) {
+                    recalculateFastCatchupAndFilter(FilterRecalculateMode.SEND_IF_CHANGED);
+                    return;
+                }
+                if (result.changed) {
+                    for (Peer peer : peers /* COW */)
+                        peer.setBloomFilter(result.filter, true);
+                    // Reset the false positive estimate so that we don't send a flood of filter updates
+                    // if the estimate temporarily overshoots our threshold.
+                    if (chain != null)
+                        chain.resetFalsePositiveEstimate();
+                }
+            }
+        };
+        try {
+            executor.execute(command);
+        } catch (RejectedExecutionException e) {
+            // Can happen during shutdown.
+        }
+    }
+
     /**
      * <p>Sets the false positive rate of bloom filters given to peers. The default is {@link #DEFAULT_BLOOM_FILTER_FP_RATE}.</p>
      *
@@ -25,6 +25,7 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.Serializable;
 import java.math.BigInteger;
+import java.security.DigestException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
@@ -39,6 +40,15 @@ public class Sha256Hash implements Serializable, Comparable<Sha256Hash> {
     public static final int LENGTH = 32; // bytes
     public static final Sha256Hash ZERO_HASH = wrap(new byte[LENGTH]);
 
+    // MessageDigest.getInstance() walks the security providers on every call, which shows up when hashing every
+    // transaction and merkle node of a block. Digests are not thread safe, so each thread gets its own.
+    private static final ThreadLocal<MessageDigest> DIGEST = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            return newDigest();
+        }
+    };
+
     private final byte[] bytes;
 
     private Sha256Hash(byte[] rawHashBytes) {
@@ -111,6 +121,38 @@ public class Sha256Hash implements Serializable, Comparable<Sha256Hash> {
         return wrap(hashTwice(content1, content2));
     }
 
+    /**
+     * Creates a new instance containing the hash of the calculated hash of the given bytes, with byte order reversed.
+     * This is how transaction and block hashes are derived from their serialization. Unlike
+     * {@code wrapReversed(hashTwice(contents))}, no intermediate array is allocated.
+     *
+     * @param contents the bytes on which the hash value is calculated
+     * @return a new instance containing the calculated (two-time) hash, reversed
+     */
+    public static Sha256Hash twiceOfReversed(byte[] contents) {
+        return twiceOfReversed(contents, 0, contents.length);
+    }
+
+    /**
+     * Creates a new instance containing the hash of the calculated hash of the given byte range, with byte order
+     * reversed. See {@link #twiceOfReversed(byte[])}.
+     *
+     * @param input the array containing the bytes to hash
+     * @param offset the offset within the array of the bytes to hash
+     * @param length the number of bytes to hash
+     * @return a new instance containing the calculated (two-time) hash, reversed
+     */
+    public static Sha256Hash twiceOfReversed(byte[] input, int offset, int length) {
+        byte[] hash = new byte[LENGTH];
+        hashTwice(input, offset, length, hash, 0);
+        for (int i = 0, j = LENGTH - 1; i < j; i++, j--) {
+            byte b = hash[i];
+            hash[i] = hash[j];
+            hash[j] = b;
+        }
+        return new Sha256Hash(hash);
+    }
+
     /**
      * Creates a new instance containing the calculated (one-time) hash of the given file's contents.
      *
@@ -142,6 +184,16 @@ public class Sha256Hash implements Serializable, Comparable<Sha256Hash> {
         }
     }
 
+    /**
+     * Returns the SHA-256 MessageDigest of the calling thread, reset and ready for use. It must not escape the
+     * current call, as the next hash computed on this thread reuses it.
+     */
+    private static MessageDigest digest() {
+        MessageDigest digest = DIGEST.get();
+        digest.reset();
+        return digest;
+    }
+
     /**
      * Calculates the SHA-256 hash of the given bytes.
      *
@@ -161,7 +213,7 @@ public class Sha256Hash implements Serializable, Comparable<Sha256Hash> {
      * @return the hash (in big-endian order)
      */
     public static byte[] hash(byte[] input, int offset, int length) {
-        MessageDigest digest = newDigest();
+        MessageDigest digest = digest();
         digest.update(input, offset, length);
         return digest.digest();
     }
@@ -182,7 +234,7 @@ public class Sha256Hash implements Serializable, Comparable<Sha256Hash> {
      * chunks and then passing the result to {@link #hashTwice(byte[])}.
      */
     public static byte[] hashTwice(byte[] input1, byte[] input2) {
-        MessageDigest digest = newDigest();
+        MessageDigest digest = digest();
         digest.update(input1);
         digest.update(input2);
         return digest.digest(digest.digest());
@@ -198,7 +250,7 @@ public class Sha256Hash implements Serializable, Comparable<Sha256Hash> {
      * @return the double-hash (in big-endian order)
      */
     public static byte[] hashTwice(byte[] input, int offset, int length) {
-        MessageDigest digest = newDigest();
+        MessageDigest digest = digest();
         digest.update(input, offset, length);
         return digest.digest(digest.digest());
     }
@@ -209,12 +261,57 @@ public class Sha256Hash implements Serializable, Comparable<Sha256Hash> {
      */
     public static byte[] hashTwice(byte[] input1, int offset1, int length1,
                                    byte[] input2, int offset2, int length2) {
-        MessageDigest digest = newDigest();
+        MessageDigest digest = digest();
         digest.update(input1, offset1, length1);
         digest.update(input2, offset2, length2);
         return digest.digest(digest.digest());
     }
 
+    /**
+     * Calculates the SHA-256 hash of the given byte range, and then hashes the resulting hash again, writing the
+     * double-hash (in big-endian order) into the given output array instead of allocating new ones.
+     *
+     * @param input the array containing the bytes to hash
+     * @param offset the offset within the array of the bytes to hash
+     * @param length the number of bytes to hash
+     * @param output the array to write the double-hash to
+     * @param outOffset the offset within the output array to write the {@link #LENGTH} bytes of the double-hash at
+     * @throws IllegalArgumentException if the output array is too small
+     */
+    public static void hashTwice(byte[] input, int offset, int length, byte[] output, int outOffset) {
+        checkArgument(outOffset >= 0 && output.length - outOffset >= LENGTH, "Output buffer too small");
+        MessageDigest digest = digest();
+        digest.update(input, offset, length);
+        digestTwice(digest, output, outOffset);
+    }
+
+    /**
+     * Calculates the hash of hash on the given byte ranges, writing the double-hash (in big-endian order) into the
+     * given output array. This is equivalent to concatenating the two ranges and then passing the result to
+     * {@link #hashTwice(byte[], int, int, byte[], int)}. The output may overlap the inputs.
+     *
+     * @throws IllegalArgumentException if the output array is too small
+     */
+    public static void hashTwice(byte[] input1, int offset1, int length1,
+                                 byte[] input2, int offset2, int length2,
+                                 byte[] output, int outOffset) {
+        checkArgument(outOffset >= 0 && output.length - outOffset >= LENGTH, "Output buffer too small");
+        MessageDigest digest = digest();
+        digest.update(input1, offset1, length1);
+        digest.update(input2, offset2, length2);
+        digestTwice(digest, output, outOffset);
+    }
+
+    private static void digestTwice(MessageDigest digest, byte[] output, int outOffset) {
+        try {
+            digest.digest(output, outOffset, LENGTH);
+            digest.update(output, outOffset, LENGTH);
+            digest.digest(output, outOffset, LENGTH);
+        } catch (DigestException e) {
+            throw new RuntimeException(e);  // Can't happen, the output buffer was checked.
+        }
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -284,7 +284,7 @@ public class Transaction extends ChildMessage {
                 } catch (IOException e) {
                     throw new RuntimeException(e); // cannot happen
                 }
-                cachedTxId = Sha256Hash.wrapReversed(Sha256Hash.hashTwice(stream.toByteArray()));
+                cachedTxId = Sha256Hash.twiceOfReversed(stream.toByteArray());
             }
         }
         return cachedTxId;
@@ -314,7 +314,7 @@ public class Transaction extends ChildMessage {
                 } catch (IOException e) {
                     throw new RuntimeException(e); // cannot happen
                 }
-                cachedWTxId = Sha256Hash.wrapReversed(Sha256Hash.hashTwice(baos.toByteArray()));
+                cachedWTxId = Sha256Hash.twiceOfReversed(baos.toByteArray());
             }
         }
         return cachedWTxId;
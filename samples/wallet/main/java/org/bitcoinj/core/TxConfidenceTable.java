@@ -17,10 +17,12 @@
 package org.bitcoinj.core;
 
 import org.bitcoinj.utils.*;
+import net.jcip.annotations.GuardedBy;
 
 import javax.annotation.*;
 import java.lang.ref.*;
 import java.util.*;
+import java.util.concurrent.*;
 import java.util.concurrent.locks.*;
 
 import static com.google.common.base.Preconditions.checkNotNull;
@@ -35,6 +37,9 @@ import static com.google.common.base.Preconditions.checkNotNull;
  *
  * <p>It is <b>not</b> at this time directly equivalent to the Bitcoin Core memory pool, which tracks
  * all transactions not currently included in the best chain - it's simply a cache.</p>
+ *
+ * <p>This class is thread safe. Lookups of known hashes don't take any lock, so every peer can report the invs it
+ * receives concurrently; only adding a new hash takes the lock.</p>
  */
 public class TxConfidenceTable {
     protected final ReentrantLock lock = Threading.lock(TxConfidenceTable.class);
@@ -46,15 +51,16 @@ public class TxConfidenceTable {
             hash = confidence.getTransactionHash();
         }
     }
-    private final Map<Sha256Hash, WeakConfidenceReference> table;
-    private final TransactionConfidence.Factory confidenceFactory;
-
+    // Read without locking. Only written with the lock held, so that it always has the same entries as insertionOrder.
+    private final ConcurrentHashMap<Sha256Hash, WeakConfidenceReference> table;
+    @GuardedBy("lock") private final LinkedHashMap<Sha256Hash, WeakConfidenceReference> insertionOrder;
     // This ReferenceQueue gets entries added to it when they are only weakly reachable, ie, the TxConfidenceTable is the
-    // only thing that is tracking the confidence data anymore. We check it from time to time and delete table entries
-    // corresponding to expired transactions. In this way memory usage of the system is in line with however many
-    // transactions you actually care to track the confidence of. We can still end up with lots of hashes being stored
-    // if our peers flood us with invs but the MAX_SIZE param caps this.
-    private ReferenceQueue<TransactionConfidence> referenceQueue;
+    // only thing that is tracking the confidence data anymore. We check it whenever a hash is added and delete table
+    // entries corresponding to expired transactions. In this way memory usage of the system is in line with however
+    // many transactions you actually care to track the confidence of. We can still end up with lots of hashes being
+    // stored if our peers flood us with invs but the MAX_SIZE param caps this.
+    private final ReferenceQueue<TransactionConfidence> referenceQueue;
+    private final TransactionConfidence.Factory confidenceFactory;
 
     /** The max size of a table created with the no-args constructor. */
     public static final int MAX_SIZE = 1000;
@@ -69,12 +75,16 @@ public class TxConfidenceTable {
     }
 
     TxConfidenceTable(final int size, TransactionConfidence.Factory confidenceFactory){
-        table = new LinkedHashMap<Sha256Hash, WeakConfidenceReference>() {
+        table = new ConcurrentHashMap<>();
+        insertionOrder = new LinkedHashMap<Sha256Hash, WeakConfidenceReference>() {
             @Override
             protected boolean removeEldestEntry(Map.Entry<Sha256Hash, WeakConfidenceReference> entry) {
                 // An arbitrary choice to stop the memory used by tracked transactions getting too huge in the event
                 // of some kind of DoS attack.
-                return size() > size;
+                if (size() <= size)
+                    return false;
+                table.remove(entry.getKey());
+                return true;
             }
         };
         referenceQueue = new ReferenceQueue<>();
@@ -89,49 +99,33 @@ public class TxConfidenceTable {
         this(MAX_SIZE);
     }
 
+    /**
+     * Returns the number of peers that have seen the given hash recently.
+     */
+    public int numBroadcastPeers(Sha256Hash txHash) {
+        TransactionConfidence confidence = get(txHash);
+        // If such a TX hash was seen, but nothing seemed to care, we ended up throwing away the data.
+        return confidence != null ? confidence.numBroadcastPeers() : 0;
+    }
+
     /**
      * If any transactions have expired due to being only weakly reachable through us, go ahead and delete their
      * table entries - it means we downloaded the transaction and sent it to various event listeners, none of
      * which bothered to keep a reference. Typically, this is because the transaction does not involve any keys that
      * are relevant to any of our wallets.
      */
+    @GuardedBy("lock")
     private void cleanTable() {
-        lock.lock();
-        try {
-            Reference<? extends TransactionConfidence> ref;
-            while ((ref = referenceQueue.poll()) != null) {
-                // Find which transaction got deleted by the GC.
-                WeakConfidenceReference txRef = (WeakConfidenceReference) ref;
-                // And remove the associated map entry so the other bits of memory can also be reclaimed.
+        Reference<? extends TransactionConfidence> ref;
+        while ((ref = referenceQueue.poll()) != null) {
+            // Find which transaction got deleted by the GC.
+            WeakConfidenceReference txRef = (WeakConfidenceReference) ref;
+            // And remove the associated map entry so the other bits of memory can also be reclaimed, unless the
+            // hash got a new confidence since.
+            if (insertionOrder.get(txRef.hash) == txRef) {
+                insertionOrder.remove(txRef.hash);
                 table.remove(txRef.hash);
             }
-        } finally {
-            lock.unlock();
-        }
-    }
-
-    /**
-     * Returns the number of peers that have seen the given hash recently.
-     */
-    public int numBroadcastPeers(Sha256Hash txHash) {
-        lock.lock();
-        try {
-            cleanTable();
-            WeakConfidenceReference entry = table.get(txHash);
-            if (entry == null) {
-                return 0;  // No such TX known.
-            } else {
-                TransactionConfidence confidence = entry.get();
-                if (confidence == null) {
-                    // Such a TX hash was seen, but nothing seemed to care so we ended up throwing away the data.
-                    table.remove(txHash);
-                    return 0;
-                } else {
-                    return confidence.numBroadcastPeers();
-                }
-            }
-        } finally {
-            lock.unlock();
         }
     }
 
@@ -142,17 +136,8 @@ public class TxConfidenceTable {
      * @return the number of peers that have now announced this hash (including the caller)
      */
     public TransactionConfidence seen(Sha256Hash hash, PeerAddress byPeer) {
-        TransactionConfidence confidence;
-        boolean fresh = false;
-        lock.lock();
-        try {
-            cleanTable();
-            confidence = getOrCreate(hash);
-            fresh = confidence.markBroadcastBy(byPeer);
-        } finally {
-            lock.unlock();
-        }
-        if (fresh)
+        TransactionConfidence confidence = getOrCreate(hash);
+        if (confidence.markBroadcastBy(byPeer))
             confidence.queueListeners(TransactionConfidence.Listener.ChangeReason.SEEN_PEERS);
         return confidence;
     }
@@ -163,16 +148,21 @@ public class TxConfidenceTable {
      */
     public TransactionConfidence getOrCreate(Sha256Hash hash) {
         checkNotNull(hash);
+        TransactionConfidence confidence = get(hash);
+        if (confidence != null)
+            return confidence;
         lock.lock();
         try {
-            WeakConfidenceReference reference = table.get(hash);
-            if (reference != null) {
-                TransactionConfidence confidence = reference.get();
-                if (confidence != null)
-                    return confidence;
-            }
+            cleanTable();
+            // Another peer may have raced us to it, in which case everyone must share the same confidence.
+            confidence = get(hash);
+            if (confidence != null)
+                return confidence;
             TransactionConfidence newConfidence = confidenceFactory.createConfidence(hash);
-            table.put(hash, new WeakConfidenceReference(newConfidence, referenceQueue));
+            WeakConfidenceReference reference = new WeakConfidenceReference(newConfidence, referenceQueue);
+            // Replacing an expired entry keeps its place in the insertion order, like it always did.
+            table.put(hash, reference);
+            insertionOrder.put(hash, reference);
             return newConfidence;
         } finally {
             lock.unlock();
@@ -185,18 +175,7 @@ public class TxConfidenceTable {
      */
     @Nullable
     public TransactionConfidence get(Sha256Hash hash) {
-        lock.lock();
-        try {
-            WeakConfidenceReference ref = table.get(hash);
-            if (ref == null)
-                return null;
-            TransactionConfidence confidence = ref.get();
-            if (confidence != null)
-                return confidence;
-            else
-                return null;
-        } finally {
-            lock.unlock();
-        }
+        WeakConfidenceReference ref = table.get(hash);
+        return ref != null ? ref.get() : null;
     }
 }
@@ -17,12 +17,14 @@
 package org.bitcoinj.crypto;
 
 import org.bitcoinj.core.*;
+import org.bouncycastle.crypto.macs.HMac;
 import org.bouncycastle.math.ec.*;
 
 import java.math.*;
 import java.nio.*;
 import java.security.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 import static com.google.common.base.Preconditions.*;
 
@@ -50,6 +52,10 @@ public final class HDKeyDerivation {
      */
     public static final int MAX_CHILD_DERIVATION_ATTEMPTS = 100;
 
+    // Number of children derived per task by deriveChildKeysFromPublic(), which also get their points normalized
+    // together.
+    private static final int BATCH_CHUNK_SIZE = 64;
+
     /**
      * Generates a new deterministic key from the given seed, which can be any arbitrary byte array. However resist
      * the temptation to use a string as the seed - any key derived from a password is likely to be weak and easily
@@ -213,6 +219,103 @@ public final class HDKeyDerivation {
         return new RawKeyBytes(Ki.getEncoded(true), chainCode);
     }
 
+    /**
+     * <p>Derives the consecutive non-hardened children {@code firstChild} to {@code firstChild + count - 1} of the given
+     * parent from its public key, giving the same keys as
+     * {@link #deriveChildKeyFromPublic(DeterministicKey, ChildNumber, PublicDeriveMode)} in {@link PublicDeriveMode#NORMAL}
+     * mode for each of them. As public derivation is possible for non-hardened children whether the parent has its
+     * private key or not, the keys are public only.</p>
+     *
+     * <p>The work is shared between the children: the parent public key is encoded once, the HMAC is keyed once per
+     * batch of children, the fixed point multiplier uses the precomputation for the generator cached on the curve, and
+     * the derived points are converted to affine coordinates with a single field inversion per batch, see
+     * {@link ECCurve#normalizeAll(ECPoint[])}. If parallel, the batches are spread over the common fork join pool.</p>
+     *
+     * @return the derived keys, by child number. An entry is null for a child number that gives an invalid key, for
+     * which {@link #deriveThisOrNextChildKey(DeterministicKey, int)} would skip to the next child number.
+     */
+    public static DeterministicKey[] deriveChildKeysFromPublic(final DeterministicKey parent, final int firstChild,
+                                                               final int count, boolean parallel) {
+        checkArgument(count >= 0);
+        if (count == 0)
+            return new DeterministicKey[0];
+        checkArgument(!new ChildNumber(firstChild).isHardened() && !new ChildNumber(firstChild + count - 1).isHardened(),
+                "Hardened derivation is unsupported (%s + %s).", firstChild, count);
+        final byte[] parentPublicKey = parent.getPubKeyPoint().getEncoded(true);
+        checkState(parentPublicKey.length == 33, "Parent pubkey must be 33 bytes, but is " + parentPublicKey.length);
+        final ECPoint parentPoint = parent.getPubKeyPoint().normalize();
+        final ECPoint[] points = new ECPoint[count];
+        final byte[][] chainCodes = new byte[count][];
+
+        ChildBatch batch = new ChildBatch(parentPublicKey, parent.getChainCode(), parentPoint, firstChild, points,
+                chainCodes, 0, count);
+        if (parallel && count > BATCH_CHUNK_SIZE)
+            ForkJoinPool.commonPool().invoke(batch);
+        else
+            batch.compute();
+
+        DeterministicKey[] keys = new DeterministicKey[count];
+        for (int i = 0; i < count; i++) {
+            if (points[i] == null || points[i].isInfinity())
+                continue;
+            ChildNumber childNumber = new ChildNumber(firstChild + i);
+            keys[i] = new DeterministicKey(parent.getPath().extend(childNumber), chainCodes[i],
+                    new LazyECPoint(ECKey.CURVE.getCurve(), points[i].getEncoded(true)), null, parent);
+        }
+        return keys;
+    }
+
+    /** Derives the points and chain codes of a range of children, see {@link #deriveChildKeysFromPublic}. */
+    private static class ChildBatch extends RecursiveAction {
+        private static final long serialVersionUID = 5501303227436911620L;
+
+        private final byte[] parentPublicKey, parentChainCode;
+        private final ECPoint parentPoint;
+        private final int firstChild;
+        private final ECPoint[] points;
+        private final byte[][] chainCodes;
+        private final int from, to;
+
+        ChildBatch(byte[] parentPublicKey, byte[] parentChainCode, ECPoint parentPoint, int firstChild,
+                   ECPoint[] points, byte[][] chainCodes, int from, int to) {
+            this.parentPublicKey = parentPublicKey;
+            this.parentChainCode = parentChainCode;
+            this.parentPoint = parentPoint;
+            this.firstChild = firstChild;
+            this.points = points;
+            this.chainCodes = chainCodes;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > BATCH_CHUNK_SIZE) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new ChildBatch(parentPublicKey, parentChainCode, parentPoint, firstChild, points, chainCodes,
+                                from, middle),
+                        new ChildBatch(parentPublicKey, parentChainCode, parentPoint, firstChild, points, chainCodes,
+                                middle, to));
+                return;
+            }
+            HMac hmacSha512 = HDUtils.createHmacSha512Digest(parentChainCode);
+            ByteBuffer data = ByteBuffer.allocate(37);
+            for (int i = from; i < to; i++) {
+                data.clear();
+                data.put(parentPublicKey);
+                data.putInt(firstChild + i);
+                byte[] hmac = HDUtils.hmacSha512(hmacSha512, data.array());
+                BigInteger ilInt = new BigInteger(1, Arrays.copyOfRange(hmac, 0, 32));
+                if (ilInt.compareTo(ECKey.CURVE.getN()) > 0)
+                    continue; // Invalid child, left null.
+                chainCodes[i] = Arrays.copyOfRange(hmac, 32, 64);
+                points[i] = ECKey.publicPointFromPrivate(ilInt).add(parentPoint);
+            }
+            // One field inversion for the whole range, instead of one per point.
+            ECKey.CURVE.getCurve().normalizeAll(points, from, to - from, null);
+        }
+    }
+
     private static void assertNonZero(BigInteger integer, String errorMessage) {
         if (integer.equals(BigInteger.ZERO))
             throw new HDDerivationException(errorMessage);
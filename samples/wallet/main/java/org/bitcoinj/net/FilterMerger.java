@@ -17,11 +17,15 @@
 package org.bitcoinj.net;
 
 import org.bitcoinj.core.BloomFilter;
+import org.bitcoinj.core.ECKey;
 import org.bitcoinj.core.PeerFilterProvider;
 import com.google.common.collect.ImmutableList;
 import org.bitcoinj.core.PeerGroup;
+import org.bitcoinj.wallet.Wallet;
 
+import javax.annotation.Nullable;
 import java.util.LinkedList;
+import java.util.List;
 
 // This code is unit tested by the PeerGroup tests.
 
@@ -36,14 +40,27 @@ import java.util.LinkedList;
  * not hold any locks whilst this object is used, relying on the single thread to prevent multiple filters being
  * calculated in parallel, thus a filter provider can do things like make blocking calls into PeerGroup from a separate
  * thread. However the bloomFilterFPRate property IS thread safe, for convenience.</p>
+ *
+ * <p>Newly added keys can also be inserted into the last calculated filter with
+ * {@link #insertKeys(ImmutableList, List)}, which avoids recalculating all the provider filters as long as the false
+ * positive rate stays within budget.</p>
  */
 public class FilterMerger {
+    /**
+     * The theoretical false positive rate of a filter updated by {@link #insertKeys(ImmutableList, List)} may exceed
+     * the requested rate by at most this factor, otherwise the filter must be recalculated.
+     */
+    public static final double MAX_INCREMENTAL_FP_RATE_INCREASE = 2.0;
+
     // We use a constant tweak to avoid giving up privacy when we regenerate our filter with new keys
     private final long bloomFilterTweak = (long) (Math.random() * Long.MAX_VALUE);
 
     private volatile double vBloomFilterFPRate;
     private int lastBloomFilterElementCount;
     private BloomFilter lastFilter;
+    // The number of elements actually inserted into lastFilter, and the earliest key time it was calculated for.
+    private int lastFilterElements;
+    private long lastEarliestKeyTimeSecs;
 
     public FilterMerger(double bloomFilterFPRate) {
         this.vBloomFilterFPRate = bloomFilterFPRate;
@@ -89,6 +106,8 @@ public class FilterMerger {
 
                 result.changed = !filter.equals(lastFilter);
                 result.filter = lastFilter = filter;
+                lastFilterElements = elements;
+                lastEarliestKeyTimeSecs = result.earliestKeyTimeSecs;
             }
             // Now adjust the earliest key time backwards by a week to handle the case of clock drift. This can occur
             // both in block header timestamps and if the users clock was out of sync when the key was first created
@@ -102,6 +121,43 @@ public class FilterMerger {
         }
     }
 
+    /**
+     * Inserts the given newly added keys into a copy of the last calculated filter, without asking the providers for
+     * their filters again. Returns null if that isn't possible and {@link #calculate(ImmutableList)} must be used
+     * instead: when there is no last filter, when a wallet among the providers doesn't filter on its keys as they are
+     * (see {@link Wallet#isKeyOnlyBloomFilter()}), when a key is older than the earliest key time of the last filter
+     * (so the fast catchup time would change), or when the false positive rate would exceed the requested rate by more
+     * than {@link #MAX_INCREMENTAL_FP_RATE_INCREASE}.
+     */
+    @Nullable
+    public Result insertKeys(ImmutableList<PeerFilterProvider> providers, List<ECKey> keys) {
+        if (lastFilter == null)
+            return null;
+        for (PeerFilterProvider provider : providers) {
+            // Married wallets filter on the P2SH scripts of their keys, which only they can compute.
+            if (provider instanceof Wallet && !((Wallet) provider).isKeyOnlyBloomFilter())
+                return null;
+        }
+        for (ECKey key : keys) {
+            if (key.getCreationTimeSeconds() < lastEarliestKeyTimeSecs)
+                return null;
+        }
+        int elements = lastFilterElements + keys.size() * 2;
+        if (lastFilter.getFalsePositiveRate(elements) > vBloomFilterFPRate * MAX_INCREMENTAL_FP_RATE_INCREASE)
+            return null;
+
+        BloomFilter filter = new BloomFilter(lastFilter);
+        for (ECKey key : keys)
+            filter.insert(key);
+
+        Result result = new Result();
+        result.earliestKeyTimeSecs = lastEarliestKeyTimeSecs - 86400 * 7;
+        result.changed = !filter.equals(lastFilter);
+        result.filter = lastFilter = filter;
+        lastFilterElements = elements;
+        return result;
+    }
+
     public void setBloomFilterFPRate(double bloomFilterFPRate) {
         this.vBloomFilterFPRate = bloomFilterFPRate;
     }
@@ -0,0 +1,239 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.store;
+
+import org.bitcoinj.core.*;
+import org.bitcoinj.script.Script;
+import com.google.common.base.Preconditions;
+
+import javax.annotation.Nullable;
+import java.util.*;
+
+/**
+ * <p>A {@link MemoryFullPrunedBlockStore} that keeps its unspent outputs packed into primitive arrays instead of a map
+ * of {@link UTXO} objects. An output then costs around a hundred bytes of heap plus its script, instead of the several
+ * hundred bytes of a UTXO, its script, hash and value objects and the map entry, and the garbage collector has a
+ * handful of large arrays to trace instead of millions of small objects. This makes it usable to hold the UTXO set of
+ * long chains.</p>
+ *
+ * <p>{@link UTXO}s are rebuilt on each read. Their address is derived from their script, so the address given to
+ * {@link #addUnspentTransactionOutput(UTXO)} is not kept.</p>
+ *
+ * <p>Writes made between {@link #beginDatabaseBatchWrite()} and {@link #commitDatabaseBatchWrite()} are kept aside
+ * for the writing thread, as with the other stores, and only packed into the arrays on commit.</p>
+ */
+public class CompactMemoryFullPrunedBlockStore extends MemoryFullPrunedBlockStore {
+    private UTXOTable transactionOutputs;
+
+    private final ThreadLocal<Boolean> inTransaction = new ThreadLocal<>();
+    private final ThreadLocal<Map<OutPoint, UTXO>> pendingAdds = new ThreadLocal<>();
+    private final ThreadLocal<Set<OutPoint>> pendingRemovals = new ThreadLocal<>();
+
+    /**
+     * Set up the CompactMemoryFullPrunedBlockStore
+     * @param params The network parameters of this block store - used to get genesis block
+     * @param fullStoreDepth The depth of blocks to keep FullStoredBlocks instead of StoredBlocks
+     * @param expectedOutputs The number of unspent outputs to size the store for. It grows as needed.
+     */
+    public CompactMemoryFullPrunedBlockStore(NetworkParameters params, int fullStoreDepth, int expectedOutputs) {
+        super(params, fullStoreDepth, false);
+        transactionOutputs = new UTXOTable(expectedOutputs);
+    }
+
+    /**
+     * Set up the CompactMemoryFullPrunedBlockStore
+     * @param params The network parameters of this block store - used to get genesis block
+     * @param fullStoreDepth The depth of blocks to keep FullStoredBlocks instead of StoredBlocks
+     */
+    public CompactMemoryFullPrunedBlockStore(NetworkParameters params, int fullStoreDepth) {
+        this(params, fullStoreDepth, 1024);
+    }
+
+    @Override
+    public synchronized void close() {
+        super.close();
+        transactionOutputs = null;
+    }
+
+    @Override
+    @Nullable
+    public synchronized UTXO getTransactionOutput(Sha256Hash hash, long index) throws BlockStoreException {
+        Preconditions.checkNotNull(transactionOutputs, "CompactMemoryFullPrunedBlockStore is closed");
+        if (Boolean.TRUE.equals(inTransaction.get())) {
+            OutPoint outPoint = new OutPoint(hash, index);
+            if (pendingAdds.get() != null) {
+                UTXO out = pendingAdds.get().get(outPoint);
+                if (out != null)
+                    return out;
+            }
+            if (pendingRemovals.get() != null && pendingRemovals.get().contains(outPoint))
+                return null;
+        }
+        int record = transactionOutputs.find(hash, index);
+        return record >= 0 ? toUTXO(hash, record) : null;
+    }
+
+    @Override
+    public synchronized void addUnspentTransactionOutput(UTXO out) throws BlockStoreException {
+        Preconditions.checkNotNull(transactionOutputs, "CompactMemoryFullPrunedBlockStore is closed");
+        if (Boolean.TRUE.equals(inTransaction.get())) {
+            OutPoint outPoint = new OutPoint(out);
+            if (pendingRemovals.get() != null)
+                pendingRemovals.get().remove(outPoint);
+            if (pendingAdds.get() == null)
+                pendingAdds.set(new HashMap<OutPoint, UTXO>());
+            pendingAdds.get().put(outPoint, out);
+        } else {
+            pack(out);
+        }
+    }
+
+    @Override
+    public synchronized void removeUnspentTransactionOutput(UTXO out) throws BlockStoreException {
+        Preconditions.checkNotNull(transactionOutputs, "CompactMemoryFullPrunedBlockStore is closed");
+        if (getTransactionOutput(out.getHash(), out.getIndex()) == null)
+            throw new BlockStoreException("Tried to remove a UTXO from CompactMemoryFullPrunedBlockStore that it didn't have!");
+        if (Boolean.TRUE.equals(inTransaction.get())) {
+            OutPoint outPoint = new OutPoint(out);
+            if (pendingAdds.get() != null)
+                pendingAdds.get().remove(outPoint);
+            if (transactionOutputs.find(out.getHash(), out.getIndex()) >= 0) {
+                if (pendingRemovals.get() == null)
+                    pendingRemovals.set(new HashSet<OutPoint>());
+                pendingRemovals.get().add(outPoint);
+            }
+        } else {
+            transactionOutputs.remove(out.getHash(), out.getIndex());
+        }
+    }
+
+    @Override
+    public synchronized void beginDatabaseBatchWrite() throws BlockStoreException {
+        super.beginDatabaseBatchWrite();
+        inTransaction.set(true);
+    }
+
+    @Override
+    public synchronized void commitDatabaseBatchWrite() throws BlockStoreException {
+        super.commitDatabaseBatchWrite();
+        if (pendingRemovals.get() != null)
+            for (OutPoint outPoint : pendingRemovals.get())
+                transactionOutputs.remove(outPoint.getHash(), outPoint.getIndex());
+        if (pendingAdds.get() != null)
+            for (UTXO out : pendingAdds.get().values())
+                pack(out);
+        endTransaction();
+    }
+
+    @Override
+    public synchronized void abortDatabaseBatchWrite() throws BlockStoreException {
+        super.abortDatabaseBatchWrite();
+        endTransaction();
+    }
+
+    /** Returns the number of committed unspent outputs in the store. */
+    public synchronized int getTransactionOutputCount() {
+        Preconditions.checkNotNull(transactionOutputs, "CompactMemoryFullPrunedBlockStore is closed");
+        return transactionOutputs.size();
+    }
+
+    @Override
+    public synchronized List<UTXO> getOpenTransactionOutputs(List<ECKey> keys) throws UTXOProviderException {
+        Preconditions.checkNotNull(transactionOutputs, "CompactMemoryFullPrunedBlockStore is closed");
+        // Like the superclass, this goes through all the outputs.
+        Set<String> addresses = new HashSet<>();
+        for (ECKey key : keys)
+            // TODO switch to pubKeyHash in order to support native segwit addresses
+            addresses.add(LegacyAddress.fromKey(getParams(), key).toString());
+        List<UTXO> foundOutputs = new ArrayList<>();
+        for (int record = 0; record < transactionOutputs.recordLimit(); record++) {
+            if (!transactionOutputs.isLive(record))
+                continue;
+            UTXO output = toUTXO(transactionOutputs.getHash(record), record);
+            if (addresses.contains(output.getAddress()))
+                foundOutputs.add(output);
+        }
+        return foundOutputs;
+    }
+
+    private void endTransaction() {
+        inTransaction.set(false);
+        pendingAdds.remove();
+        pendingRemovals.remove();
+    }
+
+    private void pack(UTXO out) {
+        transactionOutputs.put(out.getHash(), out.getIndex(), out.getValue().value, out.getHeight(), out.isCoinbase(),
+                out.getScript().getProgram());
+    }
+
+    private UTXO toUTXO(Sha256Hash hash, int record) {
+        Script script = new Script(transactionOutputs.getScript(record));
+        return new UTXO(hash,
+                transactionOutputs.getIndex(record),
+                Coin.valueOf(transactionOutputs.getValue(record)),
+                transactionOutputs.getHeight(record),
+                transactionOutputs.isCoinbase(record),
+                script,
+                getScriptAddress(script));
+    }
+
+    /** Key of the pending writes. */
+    private static final class OutPoint {
+        private final Sha256Hash hash;
+        private final long index;
+
+        OutPoint(Sha256Hash hash, long index) {
+            this.hash = hash;
+            this.index = index;
+        }
+
+        OutPoint(UTXO out) {
+            this(out.getHash(), out.getIndex());
+        }
+
+        Sha256Hash getHash() {
+            return hash;
+        }
+
+        long getIndex() {
+            return index;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(index, hash);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            OutPoint other = (OutPoint) o;
+            return index == other.index && hash.equals(other.hash);
+        }
+    }
+
+    private String getScriptAddress(Script script) {
+        // Same as what FullPrunedBlockChain stores for the outputs it creates.
+        try {
+            return script.getToAddress(getParams(), true).toString();
+        } catch (Exception e) {
+            return "";
+        }
+    }
+}
@@ -84,6 +84,9 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
     private static final String VERIFIED_CHAIN_HEAD_SETTING                     = "verifiedchainhead";
     private static final String VERSION_SETTING                                 = "version";
 
+    // Maximum number of rows touched by one statement of the batch methods.
+    private static final int MAX_BATCH_SIZE                                     = 500;
+
     // Drop table SQL.
     private static final String DROP_SETTINGS_TABLE                             = "DROP TABLE settings";
     private static final String DROP_HEADERS_TABLE                              = "DROP TABLE headers";
@@ -108,6 +111,8 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
     private static final String SELECT_OPENOUTPUTS_COUNT_SQL                    = "SELECT COUNT(*) FROM openoutputs WHERE hash = ?";
     private static final String INSERT_OPENOUTPUTS_SQL                          = "INSERT INTO openoutputs (hash, index, height, value, scriptbytes, toaddress, addresstargetable, coinbase) VALUES (?, ?, ?, ?, ?, ?, ?, ?)";
     private static final String DELETE_OPENOUTPUTS_SQL                          = "DELETE FROM openoutputs WHERE hash = ? AND index = ?";
+    // Followed by a list of placeholders, see getSelectOpenoutputsBatchSQL().
+    private static final String SELECT_OPENOUTPUTS_BATCH_SQL                    = "SELECT hash, index, height, value, scriptbytes, coinbase, toaddress FROM openoutputs WHERE hash IN ";
 
     // Dump table SQL (this is just for data sizing statistics).
     private static final String SELECT_DUMP_SETTINGS_SQL                        = "SELECT name, value FROM settings";
@@ -375,6 +380,15 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
         return DELETE_OPENOUTPUTS_SQL;
     }
 
+    /**
+     * Get the SQL to select the openoutputs records of a number of transactions. It must end with
+     * {@code hash IN }, the list of placeholders is appended to it.
+     * @return The SQL select statement.
+     */
+    protected String getSelectOpenoutputsBatchSQL() {
+        return SELECT_OPENOUTPUTS_BATCH_SQL;
+    }
+
     /**
      * Get the SQL to select the setting dump fields for sizing/statistics.
      * @return The SQL select statement.
@@ -971,6 +985,148 @@ public abstract class DatabaseFullPrunedBlockStore implements FullPrunedBlockSto
         }
     }
 
+    @Override
+    public List<UTXO> getTransactionOutputs(List<TransactionOutPoint> outPoints) throws BlockStoreException {
+        maybeConnect();
+        // Look up all the open outputs of the transactions involved, a chunk of transactions per query, and pick
+        // the requested ones out of them.
+        List<Sha256Hash> hashes = new ArrayList<>(outPoints.size());
+        Set<Sha256Hash> seen = new HashSet<>();
+        for (TransactionOutPoint outPoint : outPoints)
+            if (seen.add(outPoint.getHash()))
+                hashes.add(outPoint.getHash());
+        Map<Sha256Hash, Map<Long, UTXO>> found = new HashMap<>();
+        for (int from = 0; from < hashes.size(); from += MAX_BATCH_SIZE) {
+            List<Sha256Hash> chunk = hashes.subList(from, Math.min(from + MAX_BATCH_SIZE, hashes.size()));
+            PreparedStatement s = null;
+            try {
+                s = conn.get().prepareStatement(getSelectOpenoutputsBatchSQL() + placeholders(chunk.size()));
+                for (int i = 0; i < chunk.size(); i++)
+                    s.setBytes(i + 1, chunk.get(i).getBytes());
+                ResultSet results = s.executeQuery();
+                while (results.next()) {
+                    Sha256Hash hash = Sha256Hash.wrap(results.getBytes(1));
+                    // index is actually an unsigned int
+                    long index = results.getInt(2) & 0xFFFFFFFFL;
+                    UTXO txout = new UTXO(hash,
+                            index,
+                            Coin.valueOf(results.getLong(4)),
+                            results.getInt(3),
+                            results.getBoolean(6),
+                            new Script(results.getBytes(5)),
+                            results.getString(7));
+                    Map<Long, UTXO> outputs = found.get(hash);
+                    if (outputs == null) {
+                        outputs = new HashMap<>();
+                        found.put(hash, outputs);
+                    }
+                    outputs.put(index, txout);
+                }
+            } catch (SQLException ex) {
+                throw new BlockStoreException(ex);
+            } finally {
+                if (s != null) {
+                    try {
+                        s.close();
+                    } catch (SQLException e) {
+                        throw new BlockStoreException("Failed to close PreparedStatement");
+                    }
+                }
+            }
+        }
+        List<UTXO> outs = new ArrayList<>(outPoints.size());
+        for (TransactionOutPoint outPoint : outPoints) {
+            Map<Long, UTXO> outputs = found.get(outPoint.getHash());
+            outs.add(outputs != null ? outputs.get(outPoint.getIndex()) : null);
+        }
+        return outs;
+    }
+
+    @Override
+    public void addUnspentTransactionOutputs(List<UTXO> outs) throws BlockStoreException {
+        if (outs.isEmpty())
+            return;
+        maybeConnect();
+        PreparedStatement s = null;
+        try {
+            s = conn.get().prepareStatement(getInsertOpenoutputsSQL());
+            for (int from = 0; from < outs.size(); from += MAX_BATCH_SIZE) {
+                for (UTXO out : outs.subList(from, Math.min(from + MAX_BATCH_SIZE, outs.size()))) {
+                    s.setBytes(1, out.getHash().getBytes());
+                    // index is actually an unsigned int
+                    s.setInt(2, (int) out.getIndex());
+                    s.setInt(3, out.getHeight());
+                    s.setLong(4, out.getValue().value);
+                    s.setBytes(5, out.getScript().getProgram());
+                    s.setString(6, out.getAddress());
+                    ScriptType scriptType = out.getScript().getScriptType();
+                    s.setInt(7, scriptType != null ? scriptType.id : 0);
+                    s.setBoolean(8, out.isCoinbase());
+                    s.addBatch();
+                }
+                s.executeBatch();
+            }
+        } catch (BatchUpdateException e) {
+            // Drivers differ in what they do with the rest of a batch after a failed statement, so if an output was
+            // already present, which addUnspentTransactionOutput() tolerates, redo them one at a time.
+            if (!(getDuplicateKeyErrorCode().equals(e.getSQLState())))
+                throw new BlockStoreException(e);
+            for (UTXO out : outs)
+                addUnspentTransactionOutput(out);
+        } catch (SQLException e) {
+            throw new BlockStoreException(e);
+        } finally {
+            if (s != null) {
+                try {
+                    s.close();
+                } catch (SQLException e) {
+                    throw new BlockStoreException(e);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void removeUnspentTransactionOutputs(List<UTXO> outs) throws BlockStoreException {
+        if (outs.isEmpty())
+            return;
+        maybeConnect();
+        PreparedStatement s = null;
+        try {
+            s = conn.get().prepareStatement(getDeleteOpenoutputsSQL());
+            for (int from = 0; from < outs.size(); from += MAX_BATCH_SIZE) {
+                for (UTXO out : outs.subList(from, Math.min(from + MAX_BATCH_SIZE, outs.size()))) {
+                    s.setBytes(1, out.getHash().getBytes());
+                    // index is actually an unsigned int
+                    s.setInt(2, (int) out.getIndex());
+                    s.addBatch();
+                }
+                // Instead of checking beforehand that each output exists, as removeUnspentTransactionOutput() does,
+                // check that each delete hit a row. Drivers that can't tell report SUCCESS_NO_INFO.
+                for (int count : s.executeBatch())
+                    if (count == 0)
+                        throw new BlockStoreException("Tried to remove a UTXO from DatabaseFullPrunedBlockStore that it didn't have!");
+            }
+        } catch (SQLException e) {
+            throw new BlockStoreException(e);
+        } finally {
+            if (s != null) {
+                try {
+                    s.close();
+                } catch (SQLException e) {
+                    throw new BlockStoreException(e);
+                }
+            }
+        }
+    }
+
+    private static String placeholders(int count) {
+        StringBuilder builder = new StringBuilder("(?");
+        for (int i = 1; i < count; i++)
+            builder.append(", ?");
+        return builder.append(')').toString();
+    }
+
     @Override
     public void beginDatabaseBatchWrite() throws BlockStoreException {
         maybeConnect();
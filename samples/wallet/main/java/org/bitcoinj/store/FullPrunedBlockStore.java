@@ -18,6 +18,9 @@ package org.bitcoinj.store;
 
 import org.bitcoinj.core.*;
 
+import java.util.ArrayList;
+import java.util.List;
+
 
 /**
  * <p>An implementor of FullPrunedBlockStore saves StoredBlock objects to some storage mechanism.</p>
@@ -87,6 +90,36 @@ public interface FullPrunedBlockStore extends BlockStore, UTXOProvider {
      * @throws BlockStoreException if there is an underlying storage issue, or out was not in the list.
      */
     void removeUnspentTransactionOutput(UTXO out) throws BlockStoreException;
+
+    /**
+     * Gets the {@link UTXO}s of the given outpoints in one go. The returned list has the same order as the given one,
+     * with nulls for the outpoints that aren't found. Outpoints may be repeated.
+     */
+    default List<UTXO> getTransactionOutputs(List<TransactionOutPoint> outPoints) throws BlockStoreException {
+        List<UTXO> outs = new ArrayList<>(outPoints.size());
+        for (TransactionOutPoint outPoint : outPoints)
+            outs.add(getTransactionOutput(outPoint.getHash(), outPoint.getIndex()));
+        return outs;
+    }
+
+    /**
+     * Adds the given {@link UTXO}s to the list of unspent TransactionOutputs in one go. This is equivalent to, but
+     * usually cheaper than, calling {@link #addUnspentTransactionOutput(UTXO)} for each of them.
+     */
+    default void addUnspentTransactionOutputs(List<UTXO> outs) throws BlockStoreException {
+        for (UTXO out : outs)
+            addUnspentTransactionOutput(out);
+    }
+
+    /**
+     * Removes the given {@link UTXO}s from the list of unspent TransactionOutputs in one go. This is equivalent to,
+     * but usually cheaper than, calling {@link #removeUnspentTransactionOutput(UTXO)} for each of them.
+     * @throws BlockStoreException if there is an underlying storage issue, or any of the outs was not in the list.
+     */
+    default void removeUnspentTransactionOutputs(List<UTXO> outs) throws BlockStoreException {
+        for (UTXO out : outs)
+            removeUnspentTransactionOutput(out);
+    }
     
     /**
      * True if this store has any unspent outputs from a transaction with a hash equal to the first parameter
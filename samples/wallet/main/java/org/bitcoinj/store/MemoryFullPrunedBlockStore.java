@@ -251,9 +251,22 @@ public class MemoryFullPrunedBlockStore implements FullPrunedBlockStore {
      * @param fullStoreDepth The depth of blocks to keep FullStoredBlocks instead of StoredBlocks
      */
     public MemoryFullPrunedBlockStore(NetworkParameters params, int fullStoreDepth) {
+        this(params, fullStoreDepth, true);
+    }
+
+    /**
+     * Set up the MemoryFullPrunedBlockStore, for subclasses that keep the unspent outputs themselves and override
+     * all the methods accessing them.
+     * @param params The network parameters of this block store - used to get genesis block
+     * @param fullStoreDepth The depth of blocks to keep FullStoredBlocks instead of StoredBlocks
+     * @param storeTransactionOutputs Whether this class should keep the unspent outputs
+     */
+    protected MemoryFullPrunedBlockStore(NetworkParameters params, int fullStoreDepth,
+                                         boolean storeTransactionOutputs) {
         blockMap = new TransactionalHashMap<>();
         fullBlockMap = new TransactionalMultiKeyHashMap<>();
-        transactionOutputMap = new TransactionalHashMap<>();
+        if (storeTransactionOutputs)
+            transactionOutputMap = new TransactionalHashMap<>();
         this.fullStoreDepth = fullStoreDepth > 0 ? fullStoreDepth : 1;
         // Insert the genesis block.
         try {
@@ -368,21 +381,24 @@ public class MemoryFullPrunedBlockStore implements FullPrunedBlockStore {
     public synchronized void beginDatabaseBatchWrite() throws BlockStoreException {
         blockMap.beginDatabaseBatchWrite();
         fullBlockMap.BeginTransaction();
-        transactionOutputMap.beginDatabaseBatchWrite();
+        if (transactionOutputMap != null)
+            transactionOutputMap.beginDatabaseBatchWrite();
     }
 
     @Override
     public synchronized void commitDatabaseBatchWrite() throws BlockStoreException {
         blockMap.commitDatabaseBatchWrite();
         fullBlockMap.CommitTransaction();
-        transactionOutputMap.commitDatabaseBatchWrite();
+        if (transactionOutputMap != null)
+            transactionOutputMap.commitDatabaseBatchWrite();
     }
 
     @Override
     public synchronized void abortDatabaseBatchWrite() throws BlockStoreException {
         blockMap.abortDatabaseBatchWrite();
         fullBlockMap.AbortTransaction();
-        transactionOutputMap.abortDatabaseBatchWrite();
+        if (transactionOutputMap != null)
+            transactionOutputMap.abortDatabaseBatchWrite();
     }
 
     @Override
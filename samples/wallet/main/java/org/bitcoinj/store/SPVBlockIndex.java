@@ -0,0 +1,158 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.store;
+
+import org.bitcoinj.core.Sha256Hash;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * <p>An open addressing hash table from block hashes to the offsets of their records in the ring buffer of an
+ * {@link SPVBlockStore}. It lives in a memory mapped sidecar file, so that lookups cost O(1) whatever the capacity of
+ * the store, instead of a scan of the whole ring.</p>
+ *
+ * <p>The table has at least twice as many slots as the ring has records and uses linear probing with backward shift
+ * deletion, so it never fills up and needs no tombstones. Each slot holds the {@link Sha256Hash#hashCode()} of the
+ * block hash and the offset of the record; the full hash is always checked against the ring, so a stale index never
+ * gives wrong answers. It can miss blocks that are in the ring though: the ring cursor is mirrored in the header, and
+ * the index is rebuilt when it doesn't match on open, but the mapped slot writes are not ordered against the header
+ * write on their way to disk. The store therefore treats a miss only as a hint and falls back to a ring scan.</p>
+ *
+ * <p>This class does no locking of its own: writes must be serialized by the store, concurrent reads are fine.</p>
+ */
+class SPVBlockIndex {
+    static final String HEADER_MAGIC = "SPVI";
+
+    // File format:
+    //   4 header bytes = "SPVI"
+    //   4 bytes number of slots
+    //   4 bytes ring cursor of the store when the index was last updated
+    //   4 reserved bytes
+    //
+    // For each slot (8 bytes)
+    //   4 bytes hash code of the block hash
+    //   4 bytes offset of the record in the ring, zero for an empty slot
+    private static final int HEADER_BYTES = 16;
+    private static final int SLOT_SIZE = 8;
+
+    private final RandomAccessFile randomAccessFile;
+    private final MappedByteBuffer buffer;
+    private final int slots;
+    private final int mask;
+
+    SPVBlockIndex(File file, int capacity) throws IOException {
+        this.slots = Integer.highestOneBit(capacity * 2 - 1) << 1;
+        this.mask = slots - 1;
+        randomAccessFile = new RandomAccessFile(file, "rw");
+        int fileLength = HEADER_BYTES + slots * SLOT_SIZE;
+        randomAccessFile.setLength(fileLength);
+        buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, fileLength);
+    }
+
+    /** Returns true if the index was written for a ring of this size and is up to date with the given cursor. */
+    boolean isValid(int ringCursor) {
+        byte[] header = new byte[4];
+        ByteBuffer view = buffer.duplicate();
+        view.get(header);
+        return new String(header, StandardCharsets.US_ASCII).equals(HEADER_MAGIC)
+                && buffer.getInt(4) == slots && buffer.getInt(8) == ringCursor;
+    }
+
+    /** Empties the table and stamps the header for the given ring cursor. */
+    void clear(int ringCursor) {
+        for (int slot = 0; slot < slots; slot++)
+            buffer.putLong(slotPosition(slot), 0L);
+        ByteBuffer view = buffer.duplicate();
+        view.put(HEADER_MAGIC.getBytes(StandardCharsets.US_ASCII));
+        buffer.putInt(4, slots);
+        setRingCursor(ringCursor);
+    }
+
+    void setRingCursor(int ringCursor) {
+        buffer.putInt(8, ringCursor);
+    }
+
+    /**
+     * Returns the offset of the record of the given hash in the ring, or -1 if it isn't indexed. The ring buffer
+     * view is repositioned by this call.
+     */
+    int find(Sha256Hash hash, ByteBuffer ring) {
+        final int key = hash.hashCode();
+        final byte[] targetHashBytes = hash.getBytes();
+        byte[] scratch = new byte[32];
+        for (int slot = key & mask; ; slot = (slot + 1) & mask) {
+            int offset = buffer.getInt(slotPosition(slot) + 4);
+            if (offset == 0)
+                return -1;
+            if (buffer.getInt(slotPosition(slot)) == key) {
+                ring.position(offset);
+                ring.get(scratch);
+                if (Arrays.equals(scratch, targetHashBytes))
+                    return offset;
+            }
+        }
+    }
+
+    /** Adds the record at the given offset. The caller must remove any previous record of the same hash first. */
+    void put(Sha256Hash hash, int offset) {
+        final int key = hash.hashCode();
+        int slot = key & mask;
+        while (buffer.getInt(slotPosition(slot) + 4) != 0)
+            slot = (slot + 1) & mask;
+        buffer.putInt(slotPosition(slot), key);
+        buffer.putInt(slotPosition(slot) + 4, offset);
+    }
+
+    /** Removes the record at the given offset, if indexed under the given hash. */
+    void remove(Sha256Hash hash, int offset) {
+        final int key = hash.hashCode();
+        int hole = key & mask;
+        while (true) {
+            int current = buffer.getInt(slotPosition(hole) + 4);
+            if (current == 0)
+                return;  // Not indexed.
+            if (current == offset)
+                break;
+            hole = (hole + 1) & mask;
+        }
+        // Shift back the following entries of the cluster that may not be skipped by probes anymore.
+        for (int slot = (hole + 1) & mask; buffer.getInt(slotPosition(slot) + 4) != 0; slot = (slot + 1) & mask) {
+            int home = buffer.getInt(slotPosition(slot)) & mask;
+            if (((slot - home) & mask) >= ((slot - hole) & mask)) {
+                buffer.putLong(slotPosition(hole), buffer.getLong(slotPosition(slot)));
+                hole = slot;
+            }
+        }
+        buffer.putLong(slotPosition(hole), 0L);
+    }
+
+    void close() throws IOException {
+        buffer.force();
+        randomAccessFile.close();
+    }
+
+    private int slotPosition(int slot) {
+        return HEADER_BYTES + slot * SLOT_SIZE;
+    }
+}
@@ -16,6 +16,7 @@
 
 package org.bitcoinj.store;
 
+import com.google.common.cache.*;
 import org.bitcoinj.core.*;
 import org.bitcoinj.utils.*;
 import org.slf4j.*;
@@ -39,7 +40,12 @@ import static com.google.common.base.Preconditions.*;
  */
 public class SPVBlockStore implements BlockStore {
     private static final Logger log = LoggerFactory.getLogger(SPVBlockStore.class);
+    // Taken by writes (put, setChainHead, clear) before the write lock of the ring, so that subclasses holding it
+    // still exclude writers. Reads don't take it.
     protected final ReentrantLock lock = Threading.lock(SPVBlockStore.class);
+    // Reads of the ring buffer (get, getChainHead) only need the read lock, as each reader works on its own duplicate
+    // of the buffer. Writes take the write lock.
+    private final ReentrantReadWriteLock ringLock = Threading.readWriteLock("SPVBlockStore ring lock");
 
     /** The default number of headers that will be stored in the ring buffer. */
     public static final int DEFAULT_CAPACITY = 10000;
@@ -55,29 +61,27 @@ public class SPVBlockStore implements BlockStore {
     // the OpenJDK/Oracle JVM calls into the get() methods are compiled down to inlined native code on Android each
     // get() call is actually a full-blown JNI method under the hood, meaning it's unbelievably slow. The caches
     // below let us stay in the JIT-compiled Java world without expensive JNI transitions and make a 10x difference!
-    protected LinkedHashMap<Sha256Hash, StoredBlock> blockCache = new LinkedHashMap<Sha256Hash, StoredBlock>() {
-        @Override
-        protected boolean removeEldestEntry(Map.Entry<Sha256Hash, StoredBlock> entry) {
-            return size() > 2050;  // Slightly more than the difficulty transition period.
-        }
-    };
+    //
+    // The caches are concurrent, so that hits don't need to take the lock at all.
+    protected final Cache<Sha256Hash, StoredBlock> blockCache = CacheBuilder.newBuilder()
+            .maximumSize(2050)  // Slightly more than the difficulty transition period.
+            .build();
     // Use a separate cache to track get() misses. This is to efficiently handle the case of an unconnected block
     // during chain download. Each new block will do a get() on the unconnected block so if we haven't seen it yet we
     // must efficiently respond.
     //
-    // We don't care about the value in this cache. It is always notFoundMarker. Unfortunately LinkedHashSet does not
-    // provide the removeEldestEntry control.
+    // We don't care about the value in this cache. It is always NOT_FOUND_MARKER. Entries are only added while holding
+    // the read lock and removed while holding the write lock, so a put() can never be hidden by a stale miss.
     private static final Object NOT_FOUND_MARKER = new Object();
-    protected LinkedHashMap<Sha256Hash, Object> notFoundCache = new LinkedHashMap<Sha256Hash, Object>() {
-        @Override
-        protected boolean removeEldestEntry(Map.Entry<Sha256Hash, Object> entry) {
-            return size() > 100;  // This was chosen arbitrarily.
-        }
-    };
+    protected final Cache<Sha256Hash, Object> notFoundCache = CacheBuilder.newBuilder()
+            .maximumSize(100)  // This was chosen arbitrarily.
+            .build();
     // Used to stop other applications/processes from opening the store.
     protected FileLock fileLock = null;
     protected RandomAccessFile randomAccessFile = null;
     private int fileLength;
+    // Optional hash index of the ring, so that cache misses don't need to scan the whole ring. Null if not indexed.
+    @Nullable private SPVBlockIndex index = null;
 
     /**
      * Creates and initializes an SPV block store that can hold {@link #DEFAULT_CAPACITY} block headers. Will create the
@@ -98,6 +102,21 @@ public class SPVBlockStore implements BlockStore {
      * @throws BlockStoreException if something goes wrong
      */
     public SPVBlockStore(NetworkParameters params, File file, int capacity, boolean grow) throws BlockStoreException {
+        this(params, file, capacity, grow, false);
+    }
+
+    /**
+     * Creates and initializes an SPV block store that can hold a given amount of blocks. Will create the given file if
+     * it's missing. This operation will block on disk.
+     * @param file file to use for the block store
+     * @param capacity custom capacity in number of block headers
+     * @param grow wether or not to migrate an existing block store of different capacity
+     * @param indexed wether or not to keep a hash index of the headers in a sidecar file (the given file with an
+     *                ".idx" suffix), which makes lookups independent of the capacity
+     * @throws BlockStoreException if something goes wrong
+     */
+    public SPVBlockStore(NetworkParameters params, File file, int capacity, boolean grow, boolean indexed)
+            throws BlockStoreException {
         checkNotNull(file);
         this.params = checkNotNull(params);
         checkArgument(capacity > 0);
@@ -138,17 +157,25 @@ public class SPVBlockStore implements BlockStore {
             // the details of mmapping vary between platforms.
             buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, fileLength);
 
+            if (indexed)
+                index = new SPVBlockIndex(new File(file.getPath() + ".idx"), capacity);
+
             // Check or initialize the header bytes to ensure we don't try to open some random file.
             if (exists) {
                 byte[] header = new byte[4];
                 buffer.get(header);
                 if (!new String(header, StandardCharsets.US_ASCII).equals(HEADER_MAGIC))
                     throw new BlockStoreException("Header bytes do not equal " + HEADER_MAGIC);
+                if (index != null && !index.isValid(getRingCursor(buffer))) {
+                    log.info("Rebuilding index of SPV block chain file " + file);
+                    rebuildIndex();
+                }
             } else {
                 initNewStore(params);
             }
         } catch (Exception e) {
             try {
+                if (index != null) index.close();
                 if (randomAccessFile != null) randomAccessFile.close();
             } catch (IOException e2) {
                 throw new BlockStoreException(e2);
@@ -163,9 +190,13 @@ public class SPVBlockStore implements BlockStore {
         buffer.put(header);
         // Insert the genesis block.
         lock.lock();
+        ringLock.writeLock().lock();
         try {
             setRingCursor(buffer, FILE_PROLOGUE_BYTES);
+            if (index != null)
+                index.clear(FILE_PROLOGUE_BYTES);
         } finally {
+            ringLock.writeLock().unlock();
             lock.unlock();
         }
         Block genesis = params.getGenesisBlock().cloneAsHeader();
@@ -185,20 +216,30 @@ public class SPVBlockStore implements BlockStore {
         if (buffer == null) throw new BlockStoreException("Store closed");
 
         lock.lock();
+        ringLock.writeLock().lock();
         try {
             int cursor = getRingCursor(buffer);
             if (cursor == fileLength) {
                 // Wrapped around.
                 cursor = FILE_PROLOGUE_BYTES;
             }
-            buffer.position(cursor);
             Sha256Hash hash = block.getHeader().getHash();
-            notFoundCache.remove(hash);
+            if (index != null)
+                unindex(buffer, cursor, hash);
+            buffer.position(cursor);
+            notFoundCache.invalidate(hash);
             buffer.put(hash.getBytes());
             block.serializeCompact(buffer);
             setRingCursor(buffer, buffer.position());
+            if (index != null) {
+                index.put(hash, cursor);
+                index.setRingCursor(buffer.position());
+            }
             blockCache.put(hash, block);
-        } finally { lock.unlock(); }
+        } finally {
+            ringLock.writeLock().unlock();
+            lock.unlock();
+        }
     }
 
     @Override
@@ -207,17 +248,30 @@ public class SPVBlockStore implements BlockStore {
         final MappedByteBuffer buffer = this.buffer;
         if (buffer == null) throw new BlockStoreException("Store closed");
 
-        lock.lock();
-        try {
-            StoredBlock cacheHit = blockCache.get(hash);
-            if (cacheHit != null)
-                return cacheHit;
-            if (notFoundCache.get(hash) != null)
-                return null;
+        StoredBlock cacheHit = blockCache.getIfPresent(hash);
+        if (cacheHit != null)
+            return cacheHit;
+        if (notFoundCache.getIfPresent(hash) != null)
+            return null;
 
+        ringLock.readLock().lock();
+        try {
+            // Each reader positions its own view of the mapping, so concurrent scans don't disturb each other.
+            final ByteBuffer view = buffer.duplicate();
+            if (index != null) {
+                // A hit is verified against the ring, but a miss may come from slot writes that never reached the
+                // disk, so it falls back to the scan below.
+                int offset = index.find(hash, view);
+                if (offset >= 0) {
+                    view.position(offset + 32);
+                    StoredBlock storedBlock = StoredBlock.deserializeCompact(params, view);
+                    blockCache.put(hash, storedBlock);
+                    return storedBlock;
+                }
+            }
             // Starting from the current tip of the ring work backwards until we have either found the block or
             // wrapped around.
-            int cursor = getRingCursor(buffer);
+            int cursor = getRingCursor(view);
             final int startingPoint = cursor;
             final byte[] targetHashBytes = hash.getBytes();
             byte[] scratch = new byte[32];
@@ -228,11 +282,11 @@ public class SPVBlockStore implements BlockStore {
                     cursor = fileLength - RECORD_SIZE;
                 }
                 // Cursor is now at the start of the next record to check, so read the hash and compare it.
-                buffer.position(cursor);
-                buffer.get(scratch);
+                view.position(cursor);
+                view.get(scratch);
                 if (Arrays.equals(scratch, targetHashBytes)) {
                     // Found the target.
-                    StoredBlock storedBlock = StoredBlock.deserializeCompact(params, buffer);
+                    StoredBlock storedBlock = StoredBlock.deserializeCompact(params, view);
                     blockCache.put(hash, storedBlock);
                     return storedBlock;
                 }
@@ -242,22 +296,27 @@ public class SPVBlockStore implements BlockStore {
             return null;
         } catch (ProtocolException e) {
             throw new RuntimeException(e);  // Cannot happen.
-        } finally { lock.unlock(); }
+        } finally { ringLock.readLock().unlock(); }
     }
 
-    protected StoredBlock lastChainHead = null;
+    protected volatile StoredBlock lastChainHead = null;
 
     @Override
     public StoredBlock getChainHead() throws BlockStoreException {
         final MappedByteBuffer buffer = this.buffer;
         if (buffer == null) throw new BlockStoreException("Store closed");
 
-        lock.lock();
+        StoredBlock head = lastChainHead;
+        if (head != null)
+            return head;
+
+        ringLock.readLock().lock();
         try {
             if (lastChainHead == null) {
                 byte[] headHash = new byte[32];
-                buffer.position(8);
-                buffer.get(headHash);
+                final ByteBuffer view = buffer.duplicate();
+                view.position(8);
+                view.get(headHash);
                 Sha256Hash hash = Sha256Hash.wrap(headHash);
                 StoredBlock block = get(hash);
                 if (block == null)
@@ -265,7 +324,7 @@ public class SPVBlockStore implements BlockStore {
                 lastChainHead = block;
             }
             return lastChainHead;
-        } finally { lock.unlock(); }
+        } finally { ringLock.readLock().unlock(); }
     }
 
     @Override
@@ -274,12 +333,16 @@ public class SPVBlockStore implements BlockStore {
         if (buffer == null) throw new BlockStoreException("Store closed");
 
         lock.lock();
+        ringLock.writeLock().lock();
         try {
             lastChainHead = chainHead;
             byte[] headHash = chainHead.getHeader().getHash().getBytes();
             buffer.position(8);
             buffer.put(headHash);
-        } finally { lock.unlock(); }
+        } finally {
+            ringLock.writeLock().unlock();
+            lock.unlock();
+        }
     }
 
     @Override
@@ -289,7 +352,9 @@ public class SPVBlockStore implements BlockStore {
             buffer = null;  // Allow it to be GCd and the underlying file mapping to go away.
             fileLock.release();
             randomAccessFile.close();
-            blockCache.clear();
+            if (index != null)
+                index.close();
+            blockCache.invalidateAll();
         } catch (IOException e) {
             throw new BlockStoreException(e);
         }
@@ -326,12 +391,56 @@ public class SPVBlockStore implements BlockStore {
         buffer.putInt(4, newCursor);
     }
 
+    /**
+     * Removes from the index the record about to be overwritten at the given offset, as well as any earlier record of
+     * the hash about to be written, so that the index always points to the latest record of each hash.
+     */
+    private void unindex(ByteBuffer buffer, int offset, Sha256Hash newHash) {
+        ByteBuffer view = buffer.duplicate();
+        byte[] oldHash = new byte[32];
+        view.position(offset);
+        view.get(oldHash);
+        index.remove(Sha256Hash.wrap(oldHash), offset);
+        int previous = index.find(newHash, view);
+        if (previous >= 0)
+            index.remove(newHash, previous);
+    }
+
+    /** Indexes all records of the ring, from the oldest to the newest. */
+    private void rebuildIndex() {
+        int cursor = getRingCursor(buffer);
+        index.clear(cursor);
+        ByteBuffer view = buffer.duplicate();
+        byte[] scratch = new byte[32];
+        byte[] empty = new byte[32];
+        int offset = cursor == fileLength ? FILE_PROLOGUE_BYTES : cursor;
+        final int startingPoint = offset;
+        do {
+            view.position(offset);
+            view.get(scratch);
+            if (!Arrays.equals(scratch, empty)) {
+                Sha256Hash hash = Sha256Hash.wrap(scratch);
+                int previous = index.find(hash, view);
+                if (previous >= 0)
+                    index.remove(hash, previous);
+                index.put(hash, offset);
+            }
+            offset += RECORD_SIZE;
+            if (offset == fileLength) {
+                // Wrapped around.
+                offset = FILE_PROLOGUE_BYTES;
+            }
+        } while (offset != startingPoint);
+    }
+
     public void clear() throws Exception {
         lock.lock();
+        ringLock.writeLock().lock();
         try {
             // Clear caches
-            blockCache.clear();
-            notFoundCache.clear();
+            blockCache.invalidateAll();
+            notFoundCache.invalidateAll();
+            lastChainHead = null;
             // Clear file content
             buffer.position(0);
             long fileLength = randomAccessFile.length();
@@ -341,6 +450,9 @@ public class SPVBlockStore implements BlockStore {
             // Initialize store again
             buffer.position(0);
             initNewStore(params);
-        } finally { lock.unlock(); }
+        } finally {
+            ringLock.writeLock().unlock();
+            lock.unlock();
+        }
     }
 }
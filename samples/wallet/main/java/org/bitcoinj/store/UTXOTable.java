@@ -0,0 +1,213 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.store;
+
+import org.bitcoinj.core.Sha256Hash;
+
+import java.util.Arrays;
+
+/**
+ * <p>A set of unspent outputs packed into primitive arrays, keyed by outpoint. Each output is a record made of its
+ * transaction hash, index, value, height, coinbase flag and script bytes, stored at the same position of parallel
+ * arrays. The only object per record is the array of script bytes.</p>
+ *
+ * <p>Records are found through an open addressing hash table of record numbers, using linear probing with
+ * backward shift deletion. The numbers of removed records are recycled.</p>
+ *
+ * <p>This class is not thread-safe.</p>
+ */
+class UTXOTable {
+    private static final int HASH_LENGTH = Sha256Hash.LENGTH;
+    private static final int EMPTY = -1;
+
+    // Record number per slot of the hash table, or EMPTY.
+    private int[] slots;
+    private int mask;
+
+    // Records, by record number. A record is free if its script is null.
+    private byte[] hashes;
+    private int[] indexes;
+    private long[] values;
+    private int[] heights; // Height shifted left once, lowest bit is the coinbase flag.
+    private byte[][] scripts;
+    private int records; // Number of record numbers ever used.
+
+    private int[] freeRecords;
+    private int freeCount;
+    private int size;
+
+    UTXOTable(int initialCapacity) {
+        int capacity = Math.max(16, Integer.highestOneBit(initialCapacity - 1) << 1);
+        slots = new int[capacity * 2];
+        Arrays.fill(slots, EMPTY);
+        mask = slots.length - 1;
+        hashes = new byte[capacity * HASH_LENGTH];
+        indexes = new int[capacity];
+        values = new long[capacity];
+        heights = new int[capacity];
+        scripts = new byte[capacity][];
+        freeRecords = new int[16];
+    }
+
+    /** Returns the number of outputs in the table. */
+    int size() {
+        return size;
+    }
+
+    /** Returns the record number of the given outpoint, or -1 if it isn't in the table. */
+    int find(Sha256Hash hash, long index) {
+        byte[] hashBytes = hash.getBytes();
+        for (int slot = keyHash(hashBytes, 0, (int) index) & mask; ; slot = (slot + 1) & mask) {
+            int record = slots[slot];
+            if (record == EMPTY)
+                return -1;
+            if (indexes[record] == (int) index && hashEquals(record, hashBytes))
+                return record;
+        }
+    }
+
+    /** Adds the given output, replacing any with the same outpoint. */
+    void put(Sha256Hash hash, long index, long value, int height, boolean coinbase, byte[] script) {
+        int record = find(hash, index);
+        if (record < 0) {
+            if ((size + 1) * 2 > slots.length)
+                rehash(slots.length * 2);
+            record = allocateRecord();
+            System.arraycopy(hash.getBytes(), 0, hashes, record * HASH_LENGTH, HASH_LENGTH);
+            indexes[record] = (int) index;
+            int slot = keyHash(hashes, record * HASH_LENGTH, indexes[record]) & mask;
+            while (slots[slot] != EMPTY)
+                slot = (slot + 1) & mask;
+            slots[slot] = record;
+            size++;
+        }
+        values[record] = value;
+        heights[record] = height << 1 | (coinbase ? 1 : 0);
+        scripts[record] = script;
+    }
+
+    /** Removes the given outpoint. Returns false if it wasn't in the table. */
+    boolean remove(Sha256Hash hash, long index) {
+        int record = find(hash, index);
+        if (record < 0)
+            return false;
+        int hole = keyHash(hashes, record * HASH_LENGTH, indexes[record]) & mask;
+        while (slots[hole] != record)
+            hole = (hole + 1) & mask;
+        // Shift back the following entries of the cluster that may not be skipped by probes anymore.
+        for (int slot = (hole + 1) & mask; slots[slot] != EMPTY; slot = (slot + 1) & mask) {
+            int home = keyHash(hashes, slots[slot] * HASH_LENGTH, indexes[slots[slot]]) & mask;
+            if (((slot - home) & mask) >= ((slot - hole) & mask)) {
+                slots[hole] = slots[slot];
+                hole = slot;
+            }
+        }
+        slots[hole] = EMPTY;
+        freeRecord(record);
+        size--;
+        return true;
+    }
+
+    /** Returns the number one past the highest record number in use, for iterating with {@link #isLive(int)}. */
+    int recordLimit() {
+        return records;
+    }
+
+    boolean isLive(int record) {
+        return scripts[record] != null;
+    }
+
+    Sha256Hash getHash(int record) {
+        return Sha256Hash.wrap(Arrays.copyOfRange(hashes, record * HASH_LENGTH, (record + 1) * HASH_LENGTH));
+    }
+
+    long getIndex(int record) {
+        return indexes[record] & 0xFFFFFFFFL;
+    }
+
+    long getValue(int record) {
+        return values[record];
+    }
+
+    int getHeight(int record) {
+        return heights[record] >> 1;
+    }
+
+    boolean isCoinbase(int record) {
+        return (heights[record] & 1) != 0;
+    }
+
+    byte[] getScript(int record) {
+        return scripts[record];
+    }
+
+    private int allocateRecord() {
+        if (freeCount > 0)
+            return freeRecords[--freeCount];
+        if (records == indexes.length) {
+            int capacity = indexes.length * 2;
+            hashes = Arrays.copyOf(hashes, capacity * HASH_LENGTH);
+            indexes = Arrays.copyOf(indexes, capacity);
+            values = Arrays.copyOf(values, capacity);
+            heights = Arrays.copyOf(heights, capacity);
+            scripts = Arrays.copyOf(scripts, capacity);
+        }
+        return records++;
+    }
+
+    private void freeRecord(int record) {
+        scripts[record] = null;
+        if (freeCount == freeRecords.length)
+            freeRecords = Arrays.copyOf(freeRecords, freeCount * 2);
+        freeRecords[freeCount++] = record;
+    }
+
+    private void rehash(int slotCount) {
+        slots = new int[slotCount];
+        Arrays.fill(slots, EMPTY);
+        mask = slotCount - 1;
+        for (int record = 0; record < records; record++) {
+            if (!isLive(record))
+                continue;
+            int slot = keyHash(hashes, record * HASH_LENGTH, indexes[record]) & mask;
+            while (slots[slot] != EMPTY)
+                slot = (slot + 1) & mask;
+            slots[slot] = record;
+        }
+    }
+
+    private boolean hashEquals(int record, byte[] hashBytes) {
+        int offset = record * HASH_LENGTH;
+        for (int i = HASH_LENGTH - 1; i >= 0; i--) // The last bytes differ first, see Sha256Hash.hashCode().
+            if (hashes[offset + i] != hashBytes[i])
+                return false;
+        return true;
+    }
+
+    private static int keyHash(byte[] hashBytes, int offset, int index) {
+        // Same bytes as Sha256Hash.hashCode(), mixed with the index by the murmur3 finalizer.
+        int h = (hashBytes[offset + 28] & 0xFF) << 24 | (hashBytes[offset + 29] & 0xFF) << 16
+                | (hashBytes[offset + 30] & 0xFF) << 8 | (hashBytes[offset + 31] & 0xFF);
+        h ^= index * 0x9E3779B9;
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        h *= 0xC2B2AE35;
+        h ^= h >>> 16;
+        return h;
+    }
+}
@@ -27,11 +27,20 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Locale;
 import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * <p>This class reads block files stored in the Bitcoin Core format. This is simply a way to concatenate
@@ -49,6 +58,12 @@ import java.util.NoSuchElementException;
  * try { chain.add(block); } catch (Exception e) { }
  * }
  * }</p>
+ *
+ * <p>Alternatively, {@link #stream(boolean)} memory maps the files and can parse their blocks in parallel, while
+ * still handing them over in file order:
+ * {@code
+ * loader.stream(true).forEachOrdered(block -> { try { chain.add(block); } catch (Exception e) { } });
+ * }</p>
  */
 public class BlockFileLoader implements Iterable<Block>, Iterator<Block> {
     /**
@@ -77,6 +92,7 @@ public class BlockFileLoader implements Iterable<Block>, Iterator<Block> {
         return defaultBlocksDir;
     }
 
+    private final List<File> files;
     private Iterator<File> fileIt;
     private File file = null;
     private FileInputStream currentFileStream = null;
@@ -88,9 +104,161 @@ public class BlockFileLoader implements Iterable<Block>, Iterator<Block> {
     }
 
     public BlockFileLoader(NetworkParameters params, List<File> files) {
+        this.files = files;
         fileIt = files.iterator();
         this.params = params;
     }
+
+    /**
+     * Returns a stream of the blocks of all the files, in order. Unlike iterating this loader, the stream always
+     * starts from the first file and doesn't affect the iteration. See {@link #spliterator()}.
+     *
+     * @param parallel if true, blocks are parsed in parallel; use {@link Stream#forEachOrdered(Consumer)} to
+     *                 consume them in file order
+     */
+    public Stream<Block> stream(boolean parallel) {
+        return StreamSupport.stream(spliterator(), parallel);
+    }
+
+    /**
+     * Returns a spliterator over the blocks of all the files, in order. Each file is memory mapped and its block
+     * boundaries are found in a single pass when the spliterator reaches it. Blocks are only parsed when consumed,
+     * and both the list of files and the blocks of a file can be split, so a parallel stream parses them
+     * concurrently. Unreadable files and blocks that fail to parse are skipped, as when iterating.
+     */
+    @Override
+    public Spliterator<Block> spliterator() {
+        return new BlockSpliterator(params, files, 0, files.size(), Collections.<ByteBuffer>emptyList(), 0, 0);
+    }
+
+    /**
+     * Memory maps the given file and returns a view of each block in it, found by scanning for the magic bytes
+     * followed by a plausible length.
+     */
+    private static List<ByteBuffer> mapBlocks(NetworkParameters params, File file) throws IOException {
+        ByteBuffer buffer;
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r")) {
+            FileChannel channel = randomAccessFile.getChannel();
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        final int magic = (int) params.getPacketMagic();
+        List<ByteBuffer> blocks = new ArrayList<>();
+        int position = 0;
+        while (position + 8 <= buffer.limit()) {
+            if (buffer.getInt(position) != magic) {
+                position++;
+                continue;
+            }
+            long size = Integer.reverseBytes(buffer.getInt(position + 4)) & 0xFFFFFFFFL;
+            position += 8;
+            // We allow larger than MAX_BLOCK_SIZE because test code uses this as well.
+            if (size > Block.MAX_BLOCK_SIZE*2 || size <= 0)
+                continue;
+            if (position + size > buffer.limit())
+                break; // Truncated block at the end of the file.
+            ByteBuffer block = buffer.duplicate();
+            block.position(position);
+            block.limit(position + (int) size);
+            blocks.add(block.slice());
+            position += size;
+        }
+        return blocks;
+    }
+
+    private static class BlockSpliterator implements Spliterator<Block> {
+        private final NetworkParameters params;
+        private final List<File> files;
+        private int nextFile;
+        private final int endFile;
+        // Blocks of the file being read that are not consumed yet, before the remaining files.
+        private List<ByteBuffer> blocks;
+        private int nextBlock;
+        private int endBlock;
+
+        BlockSpliterator(NetworkParameters params, List<File> files, int nextFile, int endFile,
+                         List<ByteBuffer> blocks, int nextBlock, int endBlock) {
+            this.params = params;
+            this.files = files;
+            this.nextFile = nextFile;
+            this.endFile = endFile;
+            this.blocks = blocks;
+            this.nextBlock = nextBlock;
+            this.endBlock = endBlock;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super Block> action) {
+            while (true) {
+                while (nextBlock == endBlock) {
+                    if (nextFile == endFile)
+                        return false;
+                    openFile(files.get(nextFile++));
+                }
+                Block block = parse(blocks.get(nextBlock++));
+                if (block != null) {
+                    action.accept(block);
+                    return true;
+                }
+            }
+        }
+
+        @Override
+        public Spliterator<Block> trySplit() {
+            if (endFile - nextFile >= 2) {
+                // The prefix takes what's left of the current file and the first half of the remaining files.
+                int middle = nextFile + (endFile - nextFile) / 2;
+                Spliterator<Block> prefix = new BlockSpliterator(params, files, nextFile, middle, blocks, nextBlock,
+                        endBlock);
+                nextFile = middle;
+                blocks = Collections.emptyList();
+                nextBlock = endBlock = 0;
+                return prefix;
+            }
+            if (nextBlock == endBlock && nextFile < endFile)
+                openFile(files.get(nextFile++));
+            if (endBlock - nextBlock >= 2) {
+                // The prefix takes the first half of what's left of the current file.
+                int middle = nextBlock + (endBlock - nextBlock) / 2;
+                Spliterator<Block> prefix = new BlockSpliterator(params, files, nextFile, nextFile, blocks, nextBlock,
+                        middle);
+                nextBlock = middle;
+                return prefix;
+            }
+            return null;
+        }
+
+        @Override
+        public long estimateSize() {
+            return nextFile == endFile ? endBlock - nextBlock : Long.MAX_VALUE;
+        }
+
+        @Override
+        public int characteristics() {
+            return ORDERED | NONNULL | IMMUTABLE;
+        }
+
+        private void openFile(File file) {
+            try {
+                blocks = mapBlocks(params, file);
+            } catch (IOException e) {
+                blocks = Collections.emptyList();
+            }
+            nextBlock = 0;
+            endBlock = blocks.size();
+        }
+
+        private Block parse(ByteBuffer block) {
+            byte[] bytes = new byte[block.remaining()];
+            block.duplicate().get(bytes);
+            try {
+                return params.getDefaultSerializer().makeBlock(bytes);
+            } catch (ProtocolException e) {
+                return null;
+            } catch (Exception e) {
+                throw new RuntimeException("unexpected problem with block", e);
+            }
+        }
+    }
     
     @Override
     public boolean hasNext() {
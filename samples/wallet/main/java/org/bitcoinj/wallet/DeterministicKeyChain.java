@@ -1215,10 +1215,16 @@ public class DeterministicKeyChain implements EncryptableKeyChain {
 
         List<DeterministicKey> result  = new ArrayList<>(needed);
         final Stopwatch watch = Stopwatch.createStarted();
+        // Derive the expected children in one parallel batch. Lookahead keys are public only anyway.
+        DeterministicKey[] derived = HDKeyDerivation.deriveChildKeysFromPublic(parent, numChildren, needed, true);
         int nextChild = numChildren;
         for (int i = 0; i < needed; i++) {
-            DeterministicKey key = HDKeyDerivation.deriveThisOrNextChildKey(parent, nextChild);
-            key = key.dropPrivateBytes();
+            DeterministicKey key = nextChild - numChildren < needed ? derived[nextChild - numChildren] : null;
+            if (key == null) {
+                // An invalid child was skipped, which shifts the remaining ones past the batch.
+                key = HDKeyDerivation.deriveThisOrNextChildKey(parent, nextChild);
+                key = key.dropPrivateBytes();
+            }
             hierarchy.putKey(key);
             result.add(key);
             nextChild = key.getChildNumber().num() + 1;
@@ -695,6 +695,19 @@ public class KeyChainGroup implements KeyBag {
         return chains != null && !chains.isEmpty() && getActiveKeyChain().isMarried();
     }
 
+    /**
+     * Returns true if the Bloom filter of this group is made of its keys only, so that adding a new key to the filter
+     * with {@link BloomFilter#insert(ECKey)} gives the same filter as recalculating it. This isn't the case if any
+     * chain is married, as married chains put the P2SH scripts of their keys in the filter instead.
+     */
+    public boolean isKeyOnlyBloomFilter() {
+        if (chains != null)
+            for (DeterministicKeyChain chain : chains)
+                if (chain.isMarried())
+                    return false;
+        return true;
+    }
+
     /**
      * Encrypt the keys in the group using the KeyCrypter and the AES key. A good default KeyCrypter to use is
      * {@link KeyCrypterScrypt}.
@@ -161,6 +161,14 @@ public class Wallet extends BaseTaggableObject
     // All the TransactionOutput objects that we could spend (ignoring whether we have the private key or not).
     // Used to speed up various calculations.
     protected final HashSet<TransactionOutput> myUnspents = new HashSet<>();
+    // Total value of myUnspents, kept up to date by addMyUnspent/removeMyUnspent so the estimated balance is O(1).
+    @GuardedBy("lock") private Coin myUnspentsValue = Coin.ZERO;
+
+    // Bumped under the lock whenever the pools, or what the balances are computed from, change. Snapshot readers
+    // compare it to the version of their snapshot without taking the lock.
+    private volatile long vPoolsVersion;
+    private volatile boolean vSnapshotReads;
+    @Nullable private volatile WalletSnapshot vSnapshot;
 
     // Transactions that were dropped by the risk analysis system. These are not in any pools and not serialized
     // to disk. We have to keep them around because if we ignore a tx because we think it will never confirm, but
@@ -224,6 +232,12 @@ public class Wallet extends BaseTaggableObject
     private boolean insideReorg;
     private Map<Transaction, TransactionConfidence.Listener.ChangeReason> confidenceChanged;
     protected volatile WalletFiles vFileManager;
+    // Ids of the transactions changed since the last journal entry, or null if the wallet isn't journaled. See
+    // WalletJournal.
+    @GuardedBy("lock") @Nullable private Set<Sha256Hash> journalChanges;
+    @GuardedBy("lock") private boolean journalSnapshotNeeded;
+    // Transactions not yet read, if the wallet was read lazily. See WalletProtobufSerializer.readWalletLazily.
+    @GuardedBy("lock") @Nullable private WalletProtobufSerializer.LazyHistory lazyHistory;
     // Object that is used to send transactions asynchronously when the wallet requires it.
     protected volatile TransactionBroadcaster vTransactionBroadcaster;
     // UNIX time in seconds. Money controlled by keys created before this time will be automatically respent to a key
@@ -488,8 +502,10 @@ public class Wallet extends BaseTaggableObject
                 if (reason == ChangeReason.SEEN_PEERS) {
                     lock.lock();
                     try {
+                        markPoolsChanged();
                         checkBalanceFuturesLocked(null);
                         Transaction tx = getTransaction(confidence.getTransactionHash());
+                        markJournalChange(tx);
                         queueOnTransactionConfidenceChanged(tx);
                         maybeQueueOnWalletChanged();
                     } finally {
@@ -979,6 +995,19 @@ public class Wallet extends BaseTaggableObject
         }
     }
 
+    /**
+     * Returns true if the keys of this wallet can be added to its Bloom filter as they are, see
+     * {@link KeyChainGroup#isKeyOnlyBloomFilter()}.
+     */
+    public boolean isKeyOnlyBloomFilter() {
+        keyChainGroupLock.lock();
+        try {
+            return keyChainGroup.isKeyOnlyBloomFilter();
+        } finally {
+            keyChainGroupLock.unlock();
+        }
+    }
+
     /**
      * Return true if we are watching this address.
      */
@@ -1492,11 +1521,32 @@ public class Wallet extends BaseTaggableObject
 
     /** Saves the wallet first to the given temp file, then renames to the dest file. */
     public void saveToFile(File temp, File destFile) throws IOException {
+        saveToFile(temp, destFile, null);
+    }
+
+    /**
+     * Like {@link #saveToFile(File, File)}, but if a serializer is given it writes the protobuf itself and returns it,
+     * so that {@link WalletJournal} knows exactly what the file holds. Returns null otherwise.
+     */
+    @Nullable
+    Protos.Wallet saveToFile(File temp, File destFile, @Nullable WalletProtobufSerializer serializer)
+            throws IOException {
         FileOutputStream stream = null;
+        Protos.Wallet walletProto = null;
         lock.lock();
         try {
+            // A journal no longer applies to a rewritten wallet file, so the next journaled save must be a full one.
+            // WalletJournal clears this again after its own full saves.
+            if (journalChanges != null)
+                journalSnapshotNeeded = true;
             stream = new FileOutputStream(temp);
-            saveToFileStream(stream);
+            if (serializer != null) {
+                maybeReadHistory();
+                walletProto = serializer.walletToProto(this);
+                serializer.writeWallet(walletProto, stream);
+            } else {
+                saveToFileStream(stream);
+            }
             // Attempt to force the bits to hit the disk. In reality the OS or hard disk itself may still decide
             // to not write through to physical media for at least a few seconds, but this is the best we can do.
             stream.flush();
@@ -1509,11 +1559,12 @@ public class Wallet extends BaseTaggableObject
                 if (canonical.exists() && !canonical.delete())
                     throw new IOException("Failed to delete canonical wallet file for replacement with autosave");
                 if (temp.renameTo(canonical))
-                    return;  // else fall through.
+                    return walletProto;  // else fall through.
                 throw new IOException("Failed to rename " + temp + " to " + canonical);
             } else if (!temp.renameTo(destFile)) {
                 throw new IOException("Failed to rename " + temp + " to " + destFile);
             }
+            return walletProto;
         } catch (RuntimeException e) {
             log.error("Failed whilst saving wallet", e);
             throw e;
@@ -1682,12 +1733,120 @@ public class Wallet extends BaseTaggableObject
     public void saveToFileStream(OutputStream f) throws IOException {
         lock.lock();
         try {
+            maybeReadHistory();
             new WalletProtobufSerializer().writeWallet(this, f);
         } finally {
             lock.unlock();
         }
     }
 
+    /** Starts recording which transactions change, so that a {@link WalletJournal} can save only those. */
+    void startJournal() {
+        lock.lock();
+        try {
+            journalChanges = new HashSet<>();
+            journalSnapshotNeeded = true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the transactions that changed since the previous call, as they are now, and forgets them. The ids of
+     * those no longer in the wallet are added to the given list. Returns null if the changes aren't known and the
+     * wallet must be saved in full instead.
+     */
+    @Nullable
+    List<WalletTransaction> takeJournalChanges(List<Sha256Hash> removed) {
+        checkState(lock.isHeldByCurrentThread());
+        checkState(journalChanges != null, "Wallet is not journaled");
+        if (journalSnapshotNeeded)
+            return null;
+        List<WalletTransaction> changed = new ArrayList<>(journalChanges.size());
+        for (Sha256Hash hash : journalChanges) {
+            Transaction tx;
+            if ((tx = unspent.get(hash)) != null)
+                changed.add(new WalletTransaction(Pool.UNSPENT, tx));
+            else if ((tx = spent.get(hash)) != null)
+                changed.add(new WalletTransaction(Pool.SPENT, tx));
+            else if ((tx = pending.get(hash)) != null)
+                changed.add(new WalletTransaction(Pool.PENDING, tx));
+            else if ((tx = dead.get(hash)) != null)
+                changed.add(new WalletTransaction(Pool.DEAD, tx));
+            else
+                removed.add(hash);
+        }
+        journalChanges.clear();
+        return changed;
+    }
+
+    /** Forgets the recorded changes, as the wallet is about to be saved in full. */
+    void clearJournalChanges() {
+        checkState(lock.isHeldByCurrentThread());
+        checkState(journalChanges != null, "Wallet is not journaled");
+        journalChanges.clear();
+        journalSnapshotNeeded = false;
+    }
+
+    /** Makes the next save a full one, for example because journaled changes failed to be written. */
+    void requireJournalSnapshot() {
+        lock.lock();
+        try {
+            journalSnapshotNeeded = true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Makes the wallet read the given history when it is first needed. See {@link WalletProtobufSerializer#readWalletLazily}. */
+    void setLazyHistory(WalletProtobufSerializer.LazyHistory history) {
+        lock.lock();
+        try {
+            lazyHistory = history;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * If this wallet was read with {@link WalletProtobufSerializer#readWalletLazily(InputStream, WalletExtension...)},
+     * waits until its transaction history has been read, reading it on this thread if necessary. Returns at once
+     * otherwise.
+     */
+    public void awaitHistory() {
+        lock.lock();
+        try {
+            maybeReadHistory();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void maybeReadHistory() {
+        checkState(lock.isHeldByCurrentThread());
+        WalletProtobufSerializer.LazyHistory history = lazyHistory;
+        if (history == null)
+            return;
+        lazyHistory = null;
+        // The history is not a change to journal: it is already in the wallet file.
+        Set<Sha256Hash> changes = journalChanges;
+        journalChanges = null;
+        boolean read = false;
+        try {
+            history.addTo(this);
+            read = true;
+        } finally {
+            journalChanges = changes;
+            if (!read)
+                lazyHistory = history; // Fail again next time rather than go on without the history.
+        }
+    }
+
+    private void markJournalChange(@Nullable Transaction tx) {
+        if (journalChanges != null && tx != null)
+            journalChanges.add(tx.getTxId());
+    }
+
     /** Returns the parameters this wallet was created with. */
     public NetworkParameters getParams() {
         return params;
@@ -1702,10 +1861,19 @@ public class Wallet extends BaseTaggableObject
      * <p>Returns a wallet deserialized from the given file. Extensions previously saved with the wallet can be
      * deserialized by calling @{@link WalletExtension#deserializeWalletExtension(Wallet, byte[])}}</p>
      *
+     * <p>If the file has a {@link WalletJournal}, its changes are applied to the loaded wallet.</p>
+     *
      * @param file the wallet file to read
      * @param walletExtensions extensions possibly added to the wallet.
      */
     public static Wallet loadFromFile(File file, @Nullable WalletExtension... walletExtensions) throws UnreadableWalletException {
+        if (WalletJournal.getJournalFile(file).exists()) {
+            Wallet wallet = WalletJournal.load(file, walletExtensions);
+            if (!wallet.isConsistent()) {
+                log.error("Loaded an inconsistent wallet");
+            }
+            return wallet;
+        }
         try {
             try (FileInputStream stream = new FileInputStream(file)) {
                 return loadFromFileStream(stream, walletExtensions);
@@ -1741,6 +1909,7 @@ public class Wallet extends BaseTaggableObject
     public void isConsistentOrThrow() throws IllegalStateException {
         lock.lock();
         try {
+            maybeReadHistory();
             Set<Transaction> transactions = getTransactions(true);
 
             Set<Sha256Hash> hashes = new HashSet<>();
@@ -1769,6 +1938,13 @@ public class Wallet extends BaseTaggableObject
                     throw new IllegalStateException("Inconsistent spent tx: " + tx.getTxId());
                 }
             }
+
+            Coin unspentsValue = Coin.ZERO;
+            for (TransactionOutput output : myUnspents)
+                unspentsValue = unspentsValue.add(output.getValue());
+            if (!unspentsValue.equals(myUnspentsValue)) {
+                throw new IllegalStateException("Inconsistent unspents value: " + unspentsValue + ", " + myUnspentsValue);
+            }
         } finally {
             lock.unlock();
         }
@@ -1837,6 +2013,8 @@ public class Wallet extends BaseTaggableObject
                                               int relativityOffset) throws VerificationException {
         lock.lock();
         try {
+            // An old spent or dead transaction may show up again, for example when replaying the chain.
+            maybeReadHistory();
             Transaction tx = transactions.get(txHash);
             if (tx == null) {
                 tx = riskDropped.get(txHash);
@@ -1874,6 +2052,7 @@ public class Wallet extends BaseTaggableObject
         // spend against one of our other pending transactions.
         lock.lock();
         try {
+            maybeReadHistory();
             tx.verify();
             // Ignore it if we already know about this transaction. Receiving a pending transaction never moves it
             // between pools.
@@ -2094,6 +2273,7 @@ public class Wallet extends BaseTaggableObject
                          int relativityOffset) throws VerificationException {
         // Runs in a peer thread.
         checkState(lock.isHeldByCurrentThread());
+        maybeReadHistory();
 
         Coin prevBalance = getBalance();
         Sha256Hash txHash = tx.getTxId();
@@ -2122,6 +2302,8 @@ public class Wallet extends BaseTaggableObject
                 tx = tmp;
         }
 
+        markPoolsChanged();
+        markJournalChange(tx);
         boolean wasPending = pending.remove(txHash) != null;
         if (wasPending)
             log.info("  <-pending");
@@ -2136,7 +2318,7 @@ public class Wallet extends BaseTaggableObject
                 for (TransactionOutput output : tx.getOutputs()) {
                     final TransactionInput spentBy = output.getSpentBy();
                     if (spentBy != null) {
-                        checkState(myUnspents.add(output));
+                        checkState(addMyUnspent(output));
                         spentBy.disconnect();
                     }
                 }
@@ -2284,6 +2466,8 @@ public class Wallet extends BaseTaggableObject
             return;
         for (Map.Entry<Transaction, TransactionConfidence.Listener.ChangeReason> entry : confidenceChanged.entrySet()) {
             final Transaction tx = entry.getKey();
+            if (entry.getValue() != TransactionConfidence.Listener.ChangeReason.DEPTH)
+                markJournalChange(tx);
             tx.getConfidence().queueListeners(entry.getValue());
             queueOnTransactionConfidenceChanged(tx);
         }
@@ -2306,10 +2490,13 @@ public class Wallet extends BaseTaggableObject
             return;
         lock.lock();
         try {
+            maybeReadHistory();
             // Store the new block hash.
             setLastBlockSeenHash(newBlockHash);
             setLastBlockSeenHeight(block.getHeight());
             setLastBlockSeenTimeSecs(block.getHeader().getTimeSeconds());
+            // Depths change, and with them coinbase maturity and the available balance.
+            markPoolsChanged();
             // Notify all the BUILDING transactions of the new block.
             // This is so that they can update their depth.
             Set<Transaction> transactions = getTransactions(true);
@@ -2373,6 +2560,7 @@ public class Wallet extends BaseTaggableObject
             log.info("  coinbase tx <-dead: confidence {}", tx.getTxId(),
                     tx.getConfidence().getConfidenceType().name());
             dead.remove(tx.getTxId());
+            markPoolsChanged();
         }
 
         // Update tx and other unspent/pending transactions by connecting inputs/outputs.
@@ -2418,6 +2606,7 @@ public class Wallet extends BaseTaggableObject
             for (TransactionInput input : tx.getInputs()) {
                 TransactionOutput output = input.getConnectedOutput();
                 if (output != null && !output.isMineOrWatched(this)) {
+                    markJournalChange(output.getParentTransaction());
                     input.disconnect();
                 }
             }
@@ -2489,7 +2678,7 @@ public class Wallet extends BaseTaggableObject
                 maybeMovePool(connected, "prevtx");
                 // Just because it's connected doesn't mean it's actually ours: sometimes we have total visibility.
                 if (output.isMineOrWatched(this)) {
-                    checkState(myUnspents.remove(output));
+                    checkState(removeMyUnspent(output));
                 }
             }
         }
@@ -2512,7 +2701,7 @@ public class Wallet extends BaseTaggableObject
                             pendingTx.getTxId(), pendingTx.getInputs().indexOf(input));
                     // The unspents map might not have it if we never saw this tx until it was included in the chain
                     // and thus becomes spent the moment we become aware of it.
-                    if (myUnspents.remove(input.getConnectedOutput()))
+                    if (removeMyUnspent(input.getConnectedOutput()))
                         log.info("Removed from UNSPENTS: {}", input.getConnectedOutput());
                 }
             }
@@ -2542,7 +2731,7 @@ public class Wallet extends BaseTaggableObject
                 Transaction connected = deadInput.getConnectedTransaction();
                 if (connected == null) continue;
                 if (connected.getConfidence().getConfidenceType() != ConfidenceType.DEAD && deadInput.getConnectedOutput().getSpentBy() != null && deadInput.getConnectedOutput().getSpentBy().equals(deadInput)) {
-                    checkState(myUnspents.add(deadInput.getConnectedOutput()));
+                    checkState(addMyUnspent(deadInput.getConnectedOutput()));
                     log.info("Added to UNSPENTS: {} in {}", deadInput.getConnectedOutput(), deadInput.getConnectedOutput().getParentTransaction().getTxId());
                 }
                 deadInput.disconnect();
@@ -2552,7 +2741,7 @@ public class Wallet extends BaseTaggableObject
             confidenceChanged.put(tx, TransactionConfidence.Listener.ChangeReason.TYPE);
             // Now kill any transactions we have that depended on this one.
             for (TransactionOutput deadOutput : tx.getOutputs()) {
-                if (myUnspents.remove(deadOutput))
+                if (removeMyUnspent(deadOutput))
                     log.info("XX Removed from UNSPENTS: {}", deadOutput);
                 TransactionInput connected = deadOutput.getSpentBy();
                 if (connected == null) continue;
@@ -2568,13 +2757,13 @@ public class Wallet extends BaseTaggableObject
             TransactionInput.ConnectionResult result = input.connect(unspent, TransactionInput.ConnectMode.DISCONNECT_ON_CONFLICT);
             if (result == TransactionInput.ConnectionResult.SUCCESS) {
                 maybeMovePool(input.getConnectedTransaction(), "kill");
-                myUnspents.remove(input.getConnectedOutput());
+                removeMyUnspent(input.getConnectedOutput());
                 log.info("Removing from UNSPENTS: {}", input.getConnectedOutput());
             } else {
                 result = input.connect(spent, TransactionInput.ConnectMode.DISCONNECT_ON_CONFLICT);
                 if (result == TransactionInput.ConnectionResult.SUCCESS) {
                     maybeMovePool(input.getConnectedTransaction(), "kill");
-                    myUnspents.remove(input.getConnectedOutput());
+                    removeMyUnspent(input.getConnectedOutput());
                     log.info("Removing from UNSPENTS: {}", input.getConnectedOutput());
                 }
             }
@@ -2587,6 +2776,7 @@ public class Wallet extends BaseTaggableObject
      */
     private void maybeMovePool(Transaction tx, String context) {
         checkState(lock.isHeldByCurrentThread());
+        markJournalChange(tx);
         if (tx.isEveryOwnedOutputSpent(this)) {
             // There's nothing left I can spend in this transaction.
             if (unspent.remove(tx.getTxId()) != null) {
@@ -2594,6 +2784,7 @@ public class Wallet extends BaseTaggableObject
                     log.info("  {} {} <-unspent ->spent", tx.getTxId(), context);
                 }
                 spent.put(tx.getTxId(), tx);
+                markPoolsChanged();
             }
         } else {
             if (spent.remove(tx.getTxId()) != null) {
@@ -2601,6 +2792,7 @@ public class Wallet extends BaseTaggableObject
                     log.info("  {} {} <-spent ->unspent", tx.getTxId(), context);
                 }
                 unspent.put(tx.getTxId(), tx);
+                markPoolsChanged();
             }
         }
     }
@@ -3019,8 +3211,16 @@ public class Wallet extends BaseTaggableObject
      * @param includeDead     If true, transactions that were overridden by a double spend are included.
      */
     public Set<Transaction> getTransactions(boolean includeDead) {
+        if (useSnapshot()) {
+            WalletSnapshot snapshot = getSnapshot();
+            Set<Transaction> all = new HashSet<>(snapshot.byTime);
+            if (includeDead)
+                all.addAll(snapshot.dead);
+            return all;
+        }
         lock.lock();
         try {
+            maybeReadHistory();
             Set<Transaction> all = new HashSet<>();
             all.addAll(unspent.values());
             all.addAll(spent.values());
@@ -3039,6 +3239,7 @@ public class Wallet extends BaseTaggableObject
     public Iterable<WalletTransaction> getWalletTransactions() {
         lock.lock();
         try {
+            maybeReadHistory();
             Set<WalletTransaction> all = new HashSet<>();
             addWalletTransactionsToSet(all, Pool.UNSPENT, unspent.values());
             addWalletTransactionsToSet(all, Pool.SPENT, spent.values());
@@ -3076,6 +3277,8 @@ public class Wallet extends BaseTaggableObject
      */
     private void addWalletTransaction(Pool pool, Transaction tx) {
         checkState(lock.isHeldByCurrentThread());
+        markPoolsChanged();
+        markJournalChange(tx);
         transactions.put(tx.getTxId(), tx);
         switch (pool) {
         case UNSPENT:
@@ -3096,7 +3299,7 @@ public class Wallet extends BaseTaggableObject
         if (pool == Pool.UNSPENT || pool == Pool.PENDING) {
             for (TransactionOutput output : tx.getOutputs()) {
                 if (output.isAvailableForSpending() && output.isMineOrWatched(this))
-                    myUnspents.add(output);
+                    addMyUnspent(output);
             }
         }
         // This is safe even if the listener has been added before, as TransactionConfidence ignores duplicate
@@ -3119,8 +3322,23 @@ public class Wallet extends BaseTaggableObject
      * depending on how the wallet is implemented (eg if backed by a database).</p>
      */
     public List<Transaction> getRecentTransactions(int numTransactions, boolean includeDead) {
+        if (useSnapshot()) {
+            checkArgument(numTransactions >= 0);
+            WalletSnapshot snapshot = getSnapshot();
+            int size = snapshot.byTime.size();
+            if (numTransactions > size || numTransactions == 0) {
+                numTransactions = size;
+            }
+            if (!includeDead)
+                return new ArrayList<>(snapshot.byTime.subList(0, numTransactions));
+            ArrayList<Transaction> all = new ArrayList<>(snapshot.byTime);
+            all.addAll(snapshot.dead);
+            Collections.sort(all, Transaction.SORT_TX_BY_UPDATE_TIME);
+            return new ArrayList<>(all.subList(0, numTransactions));
+        }
         lock.lock();
         try {
+            maybeReadHistory();
             checkArgument(numTransactions >= 0);
             // Firstly, put all transactions into an array.
             int size = unspent.size() + spent.size() + pending.size();
@@ -3148,6 +3366,7 @@ public class Wallet extends BaseTaggableObject
     public Transaction getTransaction(Sha256Hash hash) {
         lock.lock();
         try {
+            maybeReadHistory();
             return transactions.get(hash);
         } finally {
             lock.unlock();
@@ -3158,6 +3377,7 @@ public class Wallet extends BaseTaggableObject
     public Map<Sha256Hash, Transaction> getTransactionPool(Pool pool) {
         lock.lock();
         try {
+            maybeReadHistory();
             switch (pool) {
                 case UNSPENT:
                     return unspent;
@@ -3183,6 +3403,7 @@ public class Wallet extends BaseTaggableObject
     public void reset() {
         lock.lock();
         try {
+            maybeReadHistory();
             clearTransactions();
             lastBlockSeenHash = null;
             lastBlockSeenHeight = -1; // Magic value for 'never'.
@@ -3220,6 +3441,104 @@ public class Wallet extends BaseTaggableObject
         dead.clear();
         transactions.clear();
         myUnspents.clear();
+        myUnspentsValue = Coin.ZERO;
+        markPoolsChanged();
+        journalSnapshotNeeded = true;
+    }
+
+    private boolean addMyUnspent(TransactionOutput output) {
+        if (!myUnspents.add(output))
+            return false;
+        myUnspentsValue = myUnspentsValue.add(output.getValue());
+        markPoolsChanged();
+        markJournalChange(output.getParentTransaction());
+        return true;
+    }
+
+    private boolean removeMyUnspent(@Nullable TransactionOutput output) {
+        if (!myUnspents.remove(output))
+            return false;
+        myUnspentsValue = myUnspentsValue.subtract(output.getValue());
+        markPoolsChanged();
+        markJournalChange(output.getParentTransaction());
+        return true;
+    }
+
+    private void markPoolsChanged() {
+        checkState(lock.isHeldByCurrentThread());
+        vPoolsVersion++; // Only ever written under the lock, so this doesn't race.
+    }
+
+    /**
+     * An immutable copy of the transaction pools and balances taken at a given pools version. It holds the same
+     * {@link Transaction} objects as the wallet, which remain mutable.
+     */
+    private static class WalletSnapshot {
+        final long version;
+        final ImmutableList<Transaction> byTime; // Non-dead transactions, most recent first.
+        final ImmutableList<Transaction> dead;
+        final Coin availableBalance;
+        final Coin estimatedBalance;
+
+        WalletSnapshot(long version, List<Transaction> byTime, Collection<Transaction> dead, Coin availableBalance,
+                       Coin estimatedBalance) {
+            this.version = version;
+            this.byTime = ImmutableList.copyOf(byTime);
+            this.dead = ImmutableList.copyOf(dead);
+            this.availableBalance = availableBalance;
+            this.estimatedBalance = estimatedBalance;
+        }
+    }
+
+    /**
+     * <p>Enables or disables snapshot reads. When enabled, {@link #getTransactions(boolean)},
+     * {@link #getRecentTransactions(int, boolean)}, {@link #getTransactionsByTime()} and the
+     * {@link BalanceType#AVAILABLE} and {@link BalanceType#ESTIMATED} balances are answered from an immutable snapshot
+     * of the wallet, instead of waiting for the wallet lock.</p>
+     *
+     * <p>The snapshot is rebuilt on the first read after a change. If the wallet is busy being written to at that
+     * moment, for example while a block is being processed, the previous snapshot is returned instead: reads never
+     * block on writes, but may lag behind them. Threads that hold the wallet lock, such as event listeners run on
+     * {@link Threading#SAME_THREAD}, always see the current state.</p>
+     */
+    public void setSnapshotReads(boolean snapshotReads) {
+        vSnapshotReads = snapshotReads;
+        if (!snapshotReads)
+            vSnapshot = null;
+    }
+
+    /** Returns true if snapshot reads are enabled, see {@link #setSnapshotReads(boolean)}. */
+    public boolean isSnapshotReads() {
+        return vSnapshotReads;
+    }
+
+    private boolean useSnapshot() {
+        return vSnapshotReads && !lock.isHeldByCurrentThread();
+    }
+
+    private WalletSnapshot getSnapshot() {
+        WalletSnapshot snapshot = vSnapshot;
+        if (snapshot != null && snapshot.version == vPoolsVersion)
+            return snapshot;
+        // Rebuild the stale snapshot, unless a writer holds the lock: then serve the previous one.
+        if (snapshot == null)
+            lock.lock();
+        else if (!lock.tryLock())
+            return snapshot;
+        try {
+            snapshot = vSnapshot;
+            if (snapshot == null || snapshot.version != vPoolsVersion) {
+                List<Transaction> byTime = new ArrayList<>(getTransactions(false));
+                Collections.sort(byTime, Transaction.SORT_TX_BY_UPDATE_TIME);
+                snapshot = new WalletSnapshot(vPoolsVersion, byTime, dead.values(),
+                        getBalance(BalanceType.AVAILABLE), getBalance(BalanceType.ESTIMATED));
+                if (vSnapshotReads)
+                    vSnapshot = snapshot;
+            }
+            return snapshot;
+        } finally {
+            lock.unlock();
+        }
     }
 
     /**
@@ -3259,6 +3578,7 @@ public class Wallet extends BaseTaggableObject
     public void cleanup() {
         lock.lock();
         try {
+            maybeReadHistory();
             boolean dirty = false;
             for (Iterator<Transaction> i = pending.values().iterator(); i.hasNext();) {
                 Transaction tx = i.next();
@@ -3270,14 +3590,17 @@ public class Wallet extends BaseTaggableObject
                             TransactionOutput output = input.getConnectedOutput();
                             if (output == null) continue;
                             if (output.isMineOrWatched(this))
-                                checkState(myUnspents.add(output));
+                                checkState(addMyUnspent(output));
+                            markJournalChange(output.getParentTransaction());
                             input.disconnect();
                         }
                         for (TransactionOutput output : tx.getOutputs())
-                            myUnspents.remove(output);
+                            removeMyUnspent(output);
 
                         i.remove();
                         transactions.remove(tx.getTxId());
+                        markPoolsChanged();
+                        markJournalChange(tx);
                         dirty = true;
                         log.info("Removed transaction {} from pending pool during cleanup.", tx.getTxId());
                     } else {
@@ -3301,6 +3624,7 @@ public class Wallet extends BaseTaggableObject
     EnumSet<Pool> getContainingPools(Transaction tx) {
         lock.lock();
         try {
+            maybeReadHistory();
             EnumSet<Pool> result = EnumSet.noneOf(Pool.class);
             Sha256Hash txHash = tx.getTxId();
             if (unspent.containsKey(txHash)) {
@@ -3325,6 +3649,7 @@ public class Wallet extends BaseTaggableObject
     public int getPoolSize(WalletTransaction.Pool pool) {
         lock.lock();
         try {
+            maybeReadHistory();
             switch (pool) {
                 case UNSPENT:
                     return unspent.size();
@@ -3345,6 +3670,7 @@ public class Wallet extends BaseTaggableObject
     public boolean poolContainsTxHash(final WalletTransaction.Pool pool, final Sha256Hash txHash) {
         lock.lock();
         try {
+            maybeReadHistory();
             switch (pool) {
                 case UNSPENT:
                     return unspent.containsKey(txHash);
@@ -3409,6 +3735,7 @@ public class Wallet extends BaseTaggableObject
         lock.lock();
         keyChainGroupLock.lock();
         try {
+            maybeReadHistory();
             StringBuilder builder = new StringBuilder("Wallet\n");
             if (includePrivateKeys)
                 builder.append("  WARNING: includes private keys!\n");
@@ -3713,12 +4040,18 @@ public class Wallet extends BaseTaggableObject
      * Returns the balance of this wallet as calculated by the provided balanceType.
      */
     public Coin getBalance(BalanceType balanceType) {
+        if (balanceType == BalanceType.AVAILABLE && useSnapshot())
+            return getSnapshot().availableBalance;
+        if (balanceType == BalanceType.ESTIMATED && useSnapshot())
+            return getSnapshot().estimatedBalance;
         lock.lock();
         try {
             if (balanceType == BalanceType.AVAILABLE || balanceType == BalanceType.AVAILABLE_SPENDABLE) {
                 List<TransactionOutput> candidates = calculateAllSpendCandidates(true, balanceType == BalanceType.AVAILABLE_SPENDABLE);
                 CoinSelection selection = coinSelector.select(NetworkParameters.MAX_MONEY, candidates);
                 return selection.valueGathered;
+            } else if (balanceType == BalanceType.ESTIMATED && vUTXOProvider == null) {
+                return myUnspentsValue;
             } else if (balanceType == BalanceType.ESTIMATED || balanceType == BalanceType.ESTIMATED_SPENDABLE) {
                 List<TransactionOutput> all = calculateAllSpendCandidates(false, balanceType == BalanceType.ESTIMATED_SPENDABLE);
                 Coin value = Coin.ZERO;
@@ -3822,6 +4155,7 @@ public class Wallet extends BaseTaggableObject
      * @return the total amount of satoshis received, regardless of whether it was spent or not.
      */
     public Coin getTotalReceived() {
+        awaitHistory();
         Coin total = Coin.ZERO;
 
         // Include outputs to us if they were not just change outputs, ie the inputs to us summed to less
@@ -3855,6 +4189,7 @@ public class Wallet extends BaseTaggableObject
      * @return the total amount of satoshis sent by us
      */
     public Coin getTotalSent() {
+        awaitHistory();
         Coin total = Coin.ZERO;
 
         for (Transaction tx: transactions.values()) {
@@ -4556,6 +4891,7 @@ public class Wallet extends BaseTaggableObject
         try {
             checkArgument(provider == null || provider.getParams().equals(params));
             this.vUTXOProvider = provider;
+            markPoolsChanged();
         } finally {
             lock.unlock();
         }
@@ -4645,6 +4981,7 @@ public class Wallet extends BaseTaggableObject
     public void reorganize(StoredBlock splitPoint, List<StoredBlock> oldBlocks, List<StoredBlock> newBlocks) throws VerificationException {
         lock.lock();
         try {
+            maybeReadHistory();
             // This runs on any peer thread with the block chain locked.
             //
             // The reorganize functionality of the wallet is tested in ChainSplitTest.java
@@ -4712,13 +5049,15 @@ public class Wallet extends BaseTaggableObject
                             TransactionInput input = output.getSpentBy();
                             if (input != null) {
                                 if (output.isMineOrWatched(this))
-                                    checkState(myUnspents.add(output));
+                                    checkState(addMyUnspent(output));
                                 input.disconnect();
                             }
                         }
                         oldChainTxns.add(tx);
                         unspent.remove(txHash);
                         spent.remove(txHash);
+                        markPoolsChanged();
+                        markJournalChange(tx);
                         checkState(!pending.containsKey(txHash));
                         checkState(!dead.containsKey(txHash));
                     }
@@ -4815,6 +5154,14 @@ public class Wallet extends BaseTaggableObject
         if (bloomFilterGuard.incrementAndGet() > 1)
             return;
         lock.lock();
+        try {
+            // The outpoints of spent transactions go in the filter too.
+            maybeReadHistory();
+        } catch (RuntimeException e) {
+            bloomFilterGuard.decrementAndGet();
+            lock.unlock();
+            throw e;
+        }
         keyChainGroupLock.lock();
         //noinspection FieldAccessNotGuarded
         calcBloomOutPointsLocked();
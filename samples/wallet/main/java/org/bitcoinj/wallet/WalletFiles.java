@@ -47,8 +47,12 @@ public class WalletFiles {
     private final long delay;
     private final TimeUnit delayTimeUnit;
     private final Callable<Void> saver;
+    private final AtomicBoolean compactionPending;
+    private final Callable<Void> compactor;
 
     private volatile Listener vListener;
+    @Nullable private volatile WalletJournal vJournal;
+    private volatile long vCompactionThreshold;
 
     /**
      * Implementors can do pre/post treatment of the wallet file. Useful for adjusting permissions and other things.
@@ -100,6 +104,24 @@ public class WalletFiles {
                 return null;
             }
         };
+        this.compactionPending = new AtomicBoolean();
+        this.compactor = new Callable<Void>() {
+            @Override public Void call() throws Exception {
+                // Runs in an auto save thread.
+                compactionPending.set(false);
+                WalletJournal journal = vJournal;
+                if (journal == null || journal.size() <= vCompactionThreshold)
+                    return null;
+                log.info("Compacting wallet journal of {} bytes", journal.size());
+                wallet.lock.lock();
+                try {
+                    saveSnapshot(journal);
+                } finally {
+                    wallet.lock.unlock();
+                }
+                return null;
+            }
+        };
     }
 
     /** Get the {@link Wallet} this {@link WalletFiles} is managing. */
@@ -114,6 +136,20 @@ public class WalletFiles {
         this.vListener = checkNotNull(listener);
     }
 
+    /**
+     * <p>Switches to journaled saving: instead of writing the whole wallet each time, saves append the transactions
+     * that changed to a {@link WalletJournal} next to the wallet file. When the journal grows past the given size, the
+     * wallet file is written in full again on the auto-save thread and the journal restarted.</p>
+     *
+     * <p>The next save is a full one. From then on, the {@link Listener} is only called for full saves.</p>
+     */
+    public void enableJournal(long compactionThresholdBytes) {
+        checkArgument(compactionThresholdBytes > 0);
+        wallet.startJournal();
+        this.vCompactionThreshold = compactionThresholdBytes;
+        this.vJournal = new WalletJournal(file);
+    }
+
     /** Actually write the wallet file to disk, using an atomic rename when possible. Runs on the current thread. */
     public void saveNow() throws IOException {
         // Can be called by any thread. However the wallet is locked whilst saving, so we can have two saves in flight
@@ -129,16 +165,39 @@ public class WalletFiles {
 
     private void saveNowInternal() throws IOException {
         final Stopwatch watch = Stopwatch.createStarted();
+        WalletJournal journal = vJournal;
+        if (journal != null) {
+            wallet.lock.lock();
+            try {
+                if (journal.append(wallet)) {
+                    if (journal.size() > vCompactionThreshold && !executor.isShutdown()
+                            && !compactionPending.getAndSet(true))
+                        executor.submit(compactor);
+                } else {
+                    saveSnapshot(journal);
+                }
+            } finally {
+                wallet.lock.unlock();
+            }
+        } else {
+            saveSnapshot(null);
+        }
+        watch.stop();
+        log.info("Save completed in {}", watch);
+    }
+
+    private void saveSnapshot(@Nullable WalletJournal journal) throws IOException {
         File directory = file.getAbsoluteFile().getParentFile();
         File temp = File.createTempFile("wallet", null, directory);
         final Listener listener = vListener;
         if (listener != null)
             listener.onBeforeAutoSave(temp);
-        wallet.saveToFile(temp, file);
+        if (journal != null)
+            journal.snapshot(wallet, temp);
+        else
+            wallet.saveToFile(temp, file);
         if (listener != null)
             listener.onAfterAutoSave(file);
-        watch.stop();
-        log.info("Save completed in {}", watch);
     }
 
     /** Queues up a save in the background. Useful for not very important wallet changes. */
@@ -0,0 +1,411 @@
+/*
+ * Copyright by the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.bitcoinj.wallet;
+
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.io.ByteStreams;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.MessageLite;
+import com.google.protobuf.Parser;
+
+import javax.annotation.Nullable;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.zip.CRC32;
+
+import static com.google.common.base.Preconditions.*;
+
+/**
+ * <p>An append-only log of the changes made to a wallet since its file was last written in full. It lets
+ * {@link WalletFiles} save a large wallet at a cost proportional to what changed, rather than to the size of the
+ * wallet: each save appends the transactions that changed, in {@link Protos.Transaction} form, the edits of the key
+ * and watched script lists since the previous save, the extensions and tags if they changed, and the scalar fields of
+ * the wallet such as the last seen block. Once the journal grows past a threshold, the wallet is written in full again
+ * and the journal restarted.</p>
+ *
+ * <p>The journal lives next to the wallet file, which keeps the usual format and can still be read on its own. It is
+ * tied to the wallet file by the hash of that file, so a journal left over from an older wallet file is ignored.
+ * {@link Wallet#loadFromFile(File, WalletExtension...)} replays the journal, if any. Entries are checksummed and
+ * replay stops at the first incomplete one, so a save interrupted by a crash only loses that save.</p>
+ *
+ * <p>Depths of building transactions are not journaled, as they change with every block. They are recomputed on
+ * replay from the height they appeared at and the last seen block height. Changes made directly to
+ * {@link org.bitcoinj.core.Transaction} objects, such as setting a memo, are only persisted by the next full save.</p>
+ */
+public class WalletJournal {
+    private static final Logger log = LoggerFactory.getLogger(WalletJournal.class);
+
+    public static final String FILE_SUFFIX = ".journal";
+
+    // File format:
+    //   4 header bytes = "WJNL"
+    //   32 bytes SHA-256 of the wallet file this journal applies to
+    //
+    // For each entry
+    //   4 bytes length of the entry data
+    //   entry data:
+    //     delimited Protos.Wallet, with the scalar fields only, plus the extensions and tags if they changed
+    //     1 byte flags: EXTENSIONS_INCLUDED and TAGS_INCLUDED
+    //     edits of the list of Protos.Key, then edits of the list of watched Protos.Script:
+    //       4 bytes number of edits, for each edit
+    //         1 byte type of edit
+    //         EDIT_COPY, EDIT_SKIP: 4 bytes number of elements to copy from the previous list, or to skip
+    //         EDIT_INSERT: the delimited element to insert
+    //     4 bytes number of changed transactions, followed by as many delimited Protos.Transaction
+    //     4 bytes number of removed transactions, followed by as many 32 byte transaction hashes
+    //   4 bytes CRC32 of the entry data
+    private static final byte[] HEADER_MAGIC = "WJNL".getBytes(StandardCharsets.US_ASCII);
+    private static final int MAX_ENTRY_SIZE = 64 * 1024 * 1024;
+    private static final int EXTENSIONS_INCLUDED = 1;
+    private static final int TAGS_INCLUDED = 2;
+    private static final byte EDIT_COPY = 0;
+    private static final byte EDIT_SKIP = 1;
+    private static final byte EDIT_INSERT = 2;
+
+    private final File walletFile;
+    private final File journalFile;
+    // The keys, watched scripts, extensions and tags as of the last entry or snapshot, which the next entry is a diff
+    // against. Null until the first snapshot. Only accessed with the wallet locked.
+    @Nullable private Protos.Wallet lastLists;
+
+    /** Creates a journal for the given wallet file. Nothing is written until the first snapshot. */
+    public WalletJournal(File walletFile) {
+        this.walletFile = checkNotNull(walletFile);
+        this.journalFile = getJournalFile(walletFile);
+    }
+
+    /** Returns the journal file of the given wallet file. */
+    public static File getJournalFile(File walletFile) {
+        return new File(walletFile.getPath() + FILE_SUFFIX);
+    }
+
+    /** Returns the size of the journal file in bytes. */
+    public long size() {
+        return journalFile.length();
+    }
+
+    /**
+     * Appends the changes made to the wallet since the previous save. Returns false, without writing anything, if the
+     * changes aren't known and {@link #snapshot(Wallet, File)} must be used instead. Must be called with the wallet
+     * locked.
+     */
+    boolean append(Wallet wallet) throws IOException {
+        checkState(wallet.lock.isHeldByCurrentThread());
+        if (lastLists == null) {
+            wallet.requireJournalSnapshot();
+            return false;
+        }
+        List<Sha256Hash> removed = new ArrayList<>();
+        List<WalletTransaction> changed = wallet.takeJournalChanges(removed);
+        if (changed == null)
+            return false;
+        try {
+            if (!journalFile.exists())
+                throw new FileNotFoundException("Journal file went missing: " + journalFile);
+            Protos.Wallet lists = listsToProto(wallet);
+            Protos.Wallet.Builder header = Protos.Wallet.newBuilder();
+            WalletProtobufSerializer.populateScalarFields(wallet, header);
+            int flags = 0;
+            if (!lists.getExtensionList().equals(lastLists.getExtensionList())) {
+                header.addAllExtension(lists.getExtensionList());
+                flags |= EXTENSIONS_INCLUDED;
+            }
+            if (!lists.getTagsList().equals(lastLists.getTagsList())) {
+                header.addAllTags(lists.getTagsList());
+                flags |= TAGS_INCLUDED;
+            }
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream entry = new DataOutputStream(bytes);
+            header.build().writeDelimitedTo(entry);
+            entry.writeByte(flags);
+            writeEdits(lastLists.getKeyList(), lists.getKeyList(), entry);
+            writeEdits(lastLists.getWatchedScriptList(), lists.getWatchedScriptList(), entry);
+            entry.writeInt(changed.size());
+            for (WalletTransaction wtx : changed)
+                WalletProtobufSerializer.makeTxProto(wtx).writeDelimitedTo(entry);
+            entry.writeInt(removed.size());
+            for (Sha256Hash hash : removed)
+                entry.write(hash.getBytes());
+            entry.flush();
+            byte[] data = bytes.toByteArray();
+            CRC32 crc = new CRC32();
+            crc.update(data);
+
+            try (FileOutputStream stream = new FileOutputStream(journalFile, true)) {
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream));
+                out.writeInt(data.length);
+                out.write(data);
+                out.writeInt((int) crc.getValue());
+                out.flush();
+                stream.getFD().sync();
+            }
+            lastLists = lists;
+            log.info("Journaled {} changed and {} removed transactions, journal is now {} bytes", changed.size(),
+                    removed.size(), journalFile.length());
+            return true;
+        } catch (IOException | RuntimeException e) {
+            // The changes were taken from the wallet, so the only way to not lose them is a full save.
+            wallet.requireJournalSnapshot();
+            throw e;
+        }
+    }
+
+    /**
+     * Saves the wallet in full to the wallet file, through the given temp file, and starts a new empty journal. Must
+     * be called with the wallet locked.
+     */
+    void snapshot(Wallet wallet, File temp) throws IOException {
+        checkState(wallet.lock.isHeldByCurrentThread());
+        try {
+            lastLists = null;
+            // The baseline of the next entries must be the lists that were written, not a later read of the wallet:
+            // keys and watched scripts are guarded by the key chain group lock, which isn't held here.
+            Protos.Wallet written = wallet.saveToFile(temp, walletFile, new WalletProtobufSerializer());
+            wallet.clearJournalChanges();
+            try (FileOutputStream stream = new FileOutputStream(journalFile)) {
+                stream.write(HEADER_MAGIC);
+                stream.write(Sha256Hash.of(walletFile).getBytes());
+                stream.flush();
+                stream.getFD().sync();
+            }
+            lastLists = Protos.Wallet.newBuilder()
+                    .addAllKey(written.getKeyList())
+                    .addAllWatchedScript(written.getWatchedScriptList())
+                    .addAllExtension(written.getExtensionList())
+                    .addAllTags(written.getTagsList())
+                    .buildPartial();  // Without the required network identifier.
+        } catch (IOException | RuntimeException e) {
+            wallet.requireJournalSnapshot();
+            throw e;
+        }
+    }
+
+    /**
+     * Loads the given wallet file and replays its journal on top of it. If there is no journal, or it belongs to
+     * another version of the wallet file, the wallet file is loaded as is.
+     */
+    public static Wallet load(File walletFile, @Nullable WalletExtension... walletExtensions)
+            throws UnreadableWalletException {
+        try {
+            MessageDigest digest = Sha256Hash.newDigest();
+            Protos.Wallet walletProto;
+            try (InputStream stream = new DigestInputStream(new BufferedInputStream(new FileInputStream(walletFile)),
+                    digest)) {
+                walletProto = WalletProtobufSerializer.parseToProto(stream);
+                ByteStreams.exhaust(stream);
+            }
+            File journalFile = getJournalFile(walletFile);
+            if (journalFile.exists())
+                walletProto = replay(walletProto, Sha256Hash.wrap(digest.digest()), journalFile);
+            final String paramsID = walletProto.getNetworkIdentifier();
+            NetworkParameters params = NetworkParameters.fromID(paramsID);
+            if (params == null)
+                throw new UnreadableWalletException("Unknown network parameters ID " + paramsID);
+            return new WalletProtobufSerializer().readWallet(params, walletExtensions, walletProto);
+        } catch (IOException | IllegalArgumentException | IllegalStateException e) {
+            throw new UnreadableWalletException("Could not read journaled wallet", e);
+        }
+    }
+
+    /**
+     * Returns the given wallet with the entries of the given journal applied, if the journal applies to a wallet file
+     * with the given hash.
+     */
+    public static Protos.Wallet replay(Protos.Wallet walletProto, Sha256Hash walletFileHash, File journalFile)
+            throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(journalFile)))) {
+            byte[] magic = new byte[HEADER_MAGIC.length];
+            byte[] hash = new byte[Sha256Hash.LENGTH];
+            try {
+                in.readFully(magic);
+                in.readFully(hash);
+            } catch (EOFException x) {
+                log.warn("Ignoring truncated wallet journal {}", journalFile);
+                return walletProto;
+            }
+            if (!Arrays.equals(magic, HEADER_MAGIC))
+                throw new IOException("Not a wallet journal: " + journalFile);
+            if (!Arrays.equals(hash, walletFileHash.getBytes())) {
+                log.info("Ignoring wallet journal {} of another wallet file", journalFile);
+                return walletProto;
+            }
+
+            Map<ByteString, Protos.Transaction> transactions = new LinkedHashMap<>();
+            for (Protos.Transaction txProto : walletProto.getTransactionList())
+                transactions.put(txProto.getHash(), txProto);
+            List<Protos.Key> keys = walletProto.getKeyList();
+            List<Protos.Script> watchedScripts = walletProto.getWatchedScriptList();
+            List<Protos.Extension> extensions = walletProto.getExtensionList();
+            List<Protos.Tag> tags = walletProto.getTagsList();
+            Protos.Wallet latest = walletProto;
+            int entries = 0;
+            byte[] data;
+            while ((data = readEntry(in)) != null) {
+                DataInputStream entry = new DataInputStream(new ByteArrayInputStream(data));
+                latest = Protos.Wallet.parseDelimitedFrom(entry);
+                int flags = entry.readUnsignedByte();
+                if ((flags & EXTENSIONS_INCLUDED) != 0)
+                    extensions = latest.getExtensionList();
+                if ((flags & TAGS_INCLUDED) != 0)
+                    tags = latest.getTagsList();
+                keys = readEdits(keys, Protos.Key.parser(), entry);
+                watchedScripts = readEdits(watchedScripts, Protos.Script.parser(), entry);
+                for (int i = entry.readInt(); i > 0; i--) {
+                    Protos.Transaction txProto = Protos.Transaction.parseDelimitedFrom(entry);
+                    transactions.put(txProto.getHash(), txProto);
+                }
+                byte[] removedHash = new byte[Sha256Hash.LENGTH];
+                for (int i = entry.readInt(); i > 0; i--) {
+                    entry.readFully(removedHash);
+                    transactions.remove(ByteString.copyFrom(removedHash));
+                }
+                entries++;
+            }
+            if (entries == 0)
+                return walletProto;
+            log.info("Replayed {} wallet journal entries", entries);
+
+            Protos.Wallet.Builder builder = latest.toBuilder()
+                    .clearKey().addAllKey(keys)
+                    .clearWatchedScript().addAllWatchedScript(watchedScripts)
+                    .clearExtension().addAllExtension(extensions)
+                    .clearTags().addAllTags(tags)
+                    .clearTransaction();
+            for (Protos.Transaction txProto : transactions.values())
+                builder.addTransaction(withDepth(txProto, latest));
+            return builder.build();
+        }
+    }
+
+    /** Returns the keys, watched scripts, extensions and tags of the wallet, the lists that entries are diffs of. */
+    private static Protos.Wallet listsToProto(Wallet wallet) {
+        Protos.Wallet.Builder lists = Protos.Wallet.newBuilder();
+        lists.addAllKey(wallet.serializeKeyChainGroupToProtobuf());
+        lists.addAllWatchedScript(WalletProtobufSerializer.makeWatchedScriptProtos(wallet));
+        WalletProtobufSerializer.populateExtensions(wallet, lists);
+        WalletProtobufSerializer.populateTags(wallet, lists);
+        return lists.buildPartial();  // Without the required network identifier.
+    }
+
+    /**
+     * Writes the edits that turn the previous list into the current one. Keys and scripts are mostly appended or
+     * changed in place, so the edits are found in one pass: elements equal in both lists are copied, elements of the
+     * previous list that aren't in the current one anymore are skipped, and the rest is inserted.
+     */
+    private static <T extends MessageLite> void writeEdits(List<T> previous, List<T> current, DataOutputStream out)
+            throws IOException {
+        Set<T> kept = new HashSet<>(current);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream edits = new DataOutputStream(bytes);
+        int count = 0;
+        int i = 0, j = 0;
+        while (i < previous.size() || j < current.size()) {
+            int start = i;
+            while (i < previous.size() && j < current.size() && previous.get(i).equals(current.get(j))) {
+                i++;
+                j++;
+            }
+            if (i > start) {
+                edits.writeByte(EDIT_COPY);
+                edits.writeInt(i - start);
+            } else {
+                while (i < previous.size() && (j == current.size() || !kept.contains(previous.get(i))))
+                    i++;
+                if (i > start) {
+                    edits.writeByte(EDIT_SKIP);
+                    edits.writeInt(i - start);
+                } else {
+                    edits.writeByte(EDIT_INSERT);
+                    current.get(j++).writeDelimitedTo(edits);
+                }
+            }
+            count++;
+        }
+        edits.flush();
+        out.writeInt(count);
+        bytes.writeTo(out);
+    }
+
+    /** Applies the edits written by {@link #writeEdits(List, List, DataOutputStream)} to the previous list. */
+    private static <T extends MessageLite> List<T> readEdits(List<T> previous, Parser<T> parser, DataInputStream in)
+            throws IOException {
+        List<T> current = new ArrayList<>(previous.size());
+        int i = 0;
+        for (int count = in.readInt(); count > 0; count--) {
+            byte type = in.readByte();
+            if (type == EDIT_INSERT) {
+                current.add(parser.parseDelimitedFrom(in));
+                continue;
+            }
+            int n = in.readInt();
+            if (n < 0 || n > previous.size() - i)
+                throw new IOException("Wallet journal edit out of range");
+            if (type == EDIT_COPY)
+                current.addAll(previous.subList(i, i + n));
+            else if (type != EDIT_SKIP)
+                throw new IOException("Unknown wallet journal edit " + type);
+            i += n;
+        }
+        if (i != previous.size())
+            throw new IOException("Wallet journal edits don't cover the previous list");
+        return current;
+    }
+
+    /** Returns the data of the next entry, or null at the end of the journal or at an incomplete entry. */
+    @Nullable
+    private static byte[] readEntry(DataInputStream in) throws IOException {
+        try {
+            int length = in.readInt();
+            if (length < 0 || length > MAX_ENTRY_SIZE) {
+                log.warn("Wallet journal entry of bad length {}, ignoring the rest of the journal", length);
+                return null;
+            }
+            byte[] data = new byte[length];
+            in.readFully(data);
+            int checksum = in.readInt();
+            CRC32 crc = new CRC32();
+            crc.update(data);
+            if ((int) crc.getValue() != checksum) {
+                log.warn("Wallet journal entry with bad checksum, ignoring the rest of the journal");
+                return null;
+            }
+            return data;
+        } catch (EOFException x) {
+            return null;
+        }
+    }
+
+    private static Protos.Transaction withDepth(Protos.Transaction txProto, Protos.Wallet walletProto) {
+        if (!walletProto.hasLastSeenBlockHeight() || !txProto.hasConfidence())
+            return txProto;
+        Protos.TransactionConfidence confidence = txProto.getConfidence();
+        if (confidence.getType() != Protos.TransactionConfidence.Type.BUILDING || !confidence.hasAppearedAtHeight())
+            return txProto;
+        int depth = walletProto.getLastSeenBlockHeight() - confidence.getAppearedAtHeight() + 1;
+        if (depth < 1 || depth == confidence.getDepth())
+            return txProto;
+        return txProto.toBuilder().setConfidence(confidence.toBuilder().setDepth(depth)).build();
+    }
+}
@@ -33,6 +33,7 @@ import org.bitcoinj.crypto.KeyCrypter;
 import org.bitcoinj.crypto.KeyCrypterScrypt;
 import org.bitcoinj.script.Script;
 import org.bitcoinj.script.ScriptException;
+import org.bitcoinj.utils.ContextPropagatingThreadFactory;
 import org.bitcoinj.utils.ExchangeRate;
 import org.bitcoinj.utils.Fiat;
 import org.bitcoinj.wallet.Protos.Wallet.EncryptionType;
@@ -149,7 +150,11 @@ public class WalletProtobufSerializer {
      * Equivalent to {@code walletToProto(wallet).writeTo(output);}
      */
     public void writeWallet(Wallet wallet, OutputStream output) throws IOException {
-        Protos.Wallet walletProto = walletToProto(wallet);
+        writeWallet(walletToProto(wallet), output);
+    }
+
+    /** Writes the given wallet protobuf to the given output stream, using the buffer size of this serializer. */
+    void writeWallet(Protos.Wallet walletProto, OutputStream output) throws IOException {
         final CodedOutputStream codedOutput = CodedOutputStream.newInstance(output, this.walletWriteBufferSize);
         walletProto.writeTo(codedOutput);
         codedOutput.flush();
@@ -173,10 +178,7 @@ public class WalletProtobufSerializer {
      */
     public Protos.Wallet walletToProto(Wallet wallet) {
         Protos.Wallet.Builder walletBuilder = Protos.Wallet.newBuilder();
-        walletBuilder.setNetworkIdentifier(wallet.getNetworkParameters().getId());
-        if (wallet.getDescription() != null) {
-            walletBuilder.setDescription(wallet.getDescription());
-        }
+        populateScalarFields(wallet, walletBuilder);
 
         for (WalletTransaction wtx : wallet.getWalletTransactions()) {
             Protos.Transaction txProto = makeTxProto(wtx);
@@ -184,15 +186,21 @@ public class WalletProtobufSerializer {
         }
 
         walletBuilder.addAllKey(wallet.serializeKeyChainGroupToProtobuf());
+        walletBuilder.addAllWatchedScript(makeWatchedScriptProtos(wallet));
+        populateExtensions(wallet, walletBuilder);
+        populateTags(wallet, walletBuilder);
 
-        for (Script script : wallet.getWatchedScripts()) {
-            Protos.Script protoScript =
-                    Protos.Script.newBuilder()
-                            .setProgram(ByteString.copyFrom(script.getProgram()))
-                            .setCreationTimestamp(script.getCreationTimeSeconds() * 1000)
-                            .build();
+        return walletBuilder.build();
+    }
 
-            walletBuilder.addWatchedScript(protoScript);
+    /**
+     * Sets the fields of the wallet that are neither lists nor extensions: network, description, last seen block,
+     * encryption parameters, key rotation time and version. See {@link WalletJournal}.
+     */
+    static void populateScalarFields(Wallet wallet, Protos.Wallet.Builder walletBuilder) {
+        walletBuilder.setNetworkIdentifier(wallet.getNetworkParameters().getId());
+        if (wallet.getDescription() != null) {
+            walletBuilder.setDescription(wallet.getDescription());
         }
 
         // Populate the lastSeenBlockHash field.
@@ -226,20 +234,32 @@ public class WalletProtobufSerializer {
             walletBuilder.setKeyRotationTime(timeSecs);
         }
 
-        populateExtensions(wallet, walletBuilder);
+        // Populate the wallet version.
+        walletBuilder.setVersion(wallet.getVersion());
+    }
 
+    static List<Protos.Script> makeWatchedScriptProtos(Wallet wallet) {
+        List<Protos.Script> protoScripts = new ArrayList<>();
+        for (Script script : wallet.getWatchedScripts()) {
+            Protos.Script protoScript =
+                    Protos.Script.newBuilder()
+                            .setProgram(ByteString.copyFrom(script.getProgram()))
+                            .setCreationTimestamp(script.getCreationTimeSeconds() * 1000)
+                            .build();
+
+            protoScripts.add(protoScript);
+        }
+        return protoScripts;
+    }
+
+    static void populateTags(Wallet wallet, Protos.Wallet.Builder walletBuilder) {
         for (Map.Entry<String, ByteString> entry : wallet.getTags().entrySet()) {
             Protos.Tag.Builder tag = Protos.Tag.newBuilder().setTag(entry.getKey()).setData(entry.getValue());
             walletBuilder.addTags(tag);
         }
-
-        // Populate the wallet version.
-        walletBuilder.setVersion(wallet.getVersion());
-
-        return walletBuilder.build();
     }
 
-    private static void populateExtensions(Wallet wallet, Protos.Wallet.Builder walletBuilder) {
+    static void populateExtensions(Wallet wallet, Protos.Wallet.Builder walletBuilder) {
         for (WalletExtension extension : wallet.getExtensions().values()) {
             Protos.Extension.Builder proto = Protos.Extension.newBuilder();
             proto.setId(extension.getWalletExtensionID());
@@ -249,7 +269,7 @@ public class WalletProtobufSerializer {
         }
     }
 
-    private static Protos.Transaction makeTxProto(WalletTransaction wtx) {
+    static Protos.Transaction makeTxProto(WalletTransaction wtx) {
         Transaction tx = wtx.getTransaction();
         Protos.Transaction.Builder txBuilder = Protos.Transaction.newBuilder();
 
@@ -448,6 +468,36 @@ public class WalletProtobufSerializer {
         }
     }
 
+    /**
+     * <p>Like {@link #readWallet(InputStream, WalletExtension...)}, but returns the wallet before its transaction history
+     * is read. Only the keys and the transactions that matter for the balance and for spending are read up front: the
+     * unspent and pending transactions and the ones directly connected to them. The spent and dead transactions are
+     * read on a background thread.</p>
+     *
+     * <p>The wallet can be used right away to get balances, addresses and to create spends. Anything that needs the
+     * history, like listing or looking up transactions, receiving transactions or blocks, saving or checking
+     * consistency, first waits for the history to be read, or reads it on the calling thread.
+     * {@link Wallet#awaitHistory()} does just that.</p>
+     *
+     * <p>Errors in the history are only found when it is read, and are then thrown as {@link IllegalStateException}
+     * by the call that needed it.</p>
+     *
+     * @throws UnreadableWalletException thrown in various error conditions (see description).
+     */
+    public Wallet readWalletLazily(InputStream input, @Nullable WalletExtension... walletExtensions)
+            throws UnreadableWalletException {
+        try {
+            Protos.Wallet walletProto = parseToProto(input);
+            final String paramsID = walletProto.getNetworkIdentifier();
+            NetworkParameters params = NetworkParameters.fromID(paramsID);
+            if (params == null)
+                throw new UnreadableWalletException("Unknown network parameters ID " + paramsID);
+            return readWallet(params, walletExtensions, walletProto, false, true);
+        } catch (IOException | IllegalArgumentException | IllegalStateException e) {
+            throw new UnreadableWalletException("Could not parse input stream to protobuf", e);
+        }
+    }
+
     /**
      * <p>Loads wallet data from the given protocol buffer and inserts it into the given Wallet object. This is primarily
      * useful when you wish to pre-register extension objects. Note that if loading fails the provided Wallet object
@@ -482,6 +532,11 @@ public class WalletProtobufSerializer {
      */
     public Wallet readWallet(NetworkParameters params, @Nullable WalletExtension[] extensions,
                              Protos.Wallet walletProto, boolean forceReset) throws UnreadableWalletException {
+        return readWallet(params, extensions, walletProto, forceReset, false);
+    }
+
+    private Wallet readWallet(NetworkParameters params, @Nullable WalletExtension[] extensions,
+                              Protos.Wallet walletProto, boolean forceReset, boolean lazy) throws UnreadableWalletException {
         if (walletProto.getVersion() > CURRENT_WALLET_VERSION)
             throw new UnreadableWalletException.FutureVersion();
         if (!walletProto.getNetworkIdentifier().equals(params.getId()))
@@ -497,6 +552,7 @@ public class WalletProtobufSerializer {
             keyChainGroup = KeyChainGroup.fromProtobufUnencrypted(params, walletProto.getKeyList(), keyChainFactory);
         }
         Wallet wallet = factory.create(params, keyChainGroup);
+        LazyHistory history = null;
 
         List<Script> scripts = new ArrayList<>();
         for (Protos.Script protoScript : walletProto.getWatchedScriptList()) {
@@ -521,18 +577,24 @@ public class WalletProtobufSerializer {
             wallet.setLastBlockSeenHash(null);
             wallet.setLastBlockSeenHeight(-1);
             wallet.setLastBlockSeenTimeSecs(0);
+        } else if (lazy) {
+            history = new LazyHistory(params, walletProto.getTransactionList());
+            history.readEager(wallet);
+            wallet.setLazyHistory(history);
         } else {
             // Read all transactions and insert into the txMap.
             for (Protos.Transaction txProto : walletProto.getTransactionList()) {
-                readTransaction(txProto, wallet.getParams());
+                readTransaction(txProto, wallet.getParams(), txMap);
             }
 
             // Update transaction outputs to point to inputs that spend them
             for (Protos.Transaction txProto : walletProto.getTransactionList()) {
-                WalletTransaction wtx = connectTransactionOutputs(params, txProto);
+                WalletTransaction wtx = connectTransactionOutputs(params, txProto, txMap, false);
                 wallet.addWalletTransaction(wtx);
             }
+        }
 
+        if (!forceReset) {
             // Update the lastBlockSeenHash.
             if (!walletProto.hasLastSeenBlockHash()) {
                 wallet.setLastBlockSeenHash(null);
@@ -565,9 +627,115 @@ public class WalletProtobufSerializer {
         // Make sure the object can be re-used to read another wallet without corruption.
         txMap.clear();
 
+        if (history != null)
+            history.readDeferredLater(wallet);
         return wallet;
     }
 
+    /**
+     * The transactions of a wallet read by {@link #readWalletLazily(InputStream, WalletExtension...)}, split between
+     * those read up front and the deferred ones, which are read into their own map on a background thread and added
+     * to the wallet when it asks for them.
+     */
+    class LazyHistory {
+        private final NetworkParameters params;
+        private final List<Protos.Transaction> eager = new ArrayList<>();
+        private final List<Protos.Transaction> deferred = new ArrayList<>();
+        private final Map<ByteString, Transaction> lazyTxMap = new HashMap<>();
+        private boolean deferredRead; // Guarded by this.
+        @Nullable private UnreadableWalletException failure; // Guarded by this.
+
+        private LazyHistory(NetworkParameters params, List<Protos.Transaction> txProtos) {
+            this.params = params;
+            // Unspent and pending transactions hold the outputs the wallet can spend.
+            Set<ByteString> eagerHashes = new HashSet<>();
+            for (Protos.Transaction txProto : txProtos) {
+                Protos.Transaction.Pool pool = txProto.getPool();
+                if (pool != Protos.Transaction.Pool.SPENT && pool != Protos.Transaction.Pool.DEAD)
+                    eagerHashes.add(txProto.getHash());
+            }
+            // Also read the transactions that spend their outputs, so that spent outputs are known as such, and those
+            // whose outputs they spend, so that their inputs are connected.
+            Set<ByteString> connected = new HashSet<>();
+            for (Protos.Transaction txProto : txProtos) {
+                for (Protos.TransactionOutput outputProto : txProto.getTransactionOutputList()) {
+                    if (!outputProto.hasSpentByTransactionHash())
+                        continue;
+                    if (eagerHashes.contains(txProto.getHash()))
+                        connected.add(outputProto.getSpentByTransactionHash());
+                    else if (eagerHashes.contains(outputProto.getSpentByTransactionHash()))
+                        connected.add(txProto.getHash());
+                }
+            }
+            eagerHashes.addAll(connected);
+            // And the transactions that override those, for their confidence.
+            for (Protos.Transaction txProto : txProtos)
+                if (connected.contains(txProto.getHash()) && txProto.getConfidence().hasOverridingTransaction())
+                    eagerHashes.add(txProto.getConfidence().getOverridingTransaction());
+            for (Protos.Transaction txProto : txProtos)
+                (eagerHashes.contains(txProto.getHash()) ? eager : deferred).add(txProto);
+        }
+
+        private void readEager(Wallet wallet) throws UnreadableWalletException {
+            for (Protos.Transaction txProto : eager)
+                readTransaction(txProto, params, lazyTxMap);
+            for (Protos.Transaction txProto : eager)
+                wallet.addWalletTransaction(connectTransactionOutputs(params, txProto, lazyTxMap, true));
+            log.info("Read {} transactions, deferred reading {} historical ones", eager.size(), deferred.size());
+        }
+
+        private void readDeferredLater(final Wallet wallet) {
+            Thread thread = new ContextPropagatingThreadFactory("Wallet history reader", Thread.MIN_PRIORITY)
+                    .newThread(new Runnable() {
+                        @Override
+                        public void run() {
+                            readDeferred();
+                            wallet.awaitHistory();
+                        }
+                    });
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        private synchronized void readDeferred() {
+            if (deferredRead)
+                return;
+            deferredRead = true;
+            try {
+                for (Protos.Transaction txProto : deferred)
+                    readTransaction(txProto, params, lazyTxMap);
+            } catch (UnreadableWalletException | RuntimeException e) {
+                log.error("Failed to read wallet history", e);
+                failure = e instanceof UnreadableWalletException ? (UnreadableWalletException) e
+                        : new UnreadableWalletException("Failed to read wallet history", e);
+            }
+        }
+
+        /**
+         * Adds the deferred transactions to the given wallet, reading them first if the background thread hasn't yet.
+         * Called by the wallet, with its lock held.
+         */
+        void addTo(Wallet wallet) {
+            readDeferred();
+            try {
+                synchronized (this) {
+                    if (failure != null)
+                        throw failure;
+                }
+                List<WalletTransaction> wtxs = new ArrayList<>(deferred.size());
+                for (Protos.Transaction txProto : deferred)
+                    wtxs.add(connectTransactionOutputs(params, txProto, lazyTxMap, false));
+                for (Protos.Transaction txProto : eager)
+                    connectOutputs(lazyTxMap.get(txProto.getHash()), txProto, lazyTxMap, false);
+                for (WalletTransaction wtx : wtxs)
+                    wallet.addWalletTransaction(wtx);
+                log.info("Read {} historical transactions", wtxs.size());
+            } catch (UnreadableWalletException e) {
+                throw new IllegalStateException("Could not read wallet history", e);
+            }
+        }
+    }
+
     private void loadExtensions(Wallet wallet, WalletExtension[] extensionsList, Protos.Wallet walletProto) throws UnreadableWalletException {
         final Map<String, WalletExtension> extensions = new HashMap<>();
         for (WalletExtension e : extensionsList)
@@ -617,7 +785,8 @@ public class WalletProtobufSerializer {
         return Protos.Wallet.parseFrom(codedInput);
     }
 
-    private void readTransaction(Protos.Transaction txProto, NetworkParameters params) throws UnreadableWalletException {
+    private void readTransaction(Protos.Transaction txProto, NetworkParameters params,
+                                 Map<ByteString, Transaction> txMap) throws UnreadableWalletException {
         Transaction tx = new Transaction(params);
 
         tx.setVersion(txProto.getVersion());
@@ -702,7 +871,9 @@ public class WalletProtobufSerializer {
     }
 
     private WalletTransaction connectTransactionOutputs(final NetworkParameters params,
-                                                        final org.bitcoinj.wallet.Protos.Transaction txProto) throws UnreadableWalletException {
+                                                        final org.bitcoinj.wallet.Protos.Transaction txProto,
+                                                        final Map<ByteString, Transaction> txMap,
+                                                        final boolean partial) throws UnreadableWalletException {
         Transaction tx = txMap.get(txProto.getHash());
         final WalletTransaction.Pool pool;
         switch (txProto.getPool()) {
@@ -721,13 +892,32 @@ public class WalletProtobufSerializer {
             default:
                 throw new UnreadableWalletException("Unknown transaction pool: " + txProto.getPool());
         }
+        connectOutputs(tx, txProto, txMap, partial);
+
+        if (txProto.hasConfidence()) {
+            Protos.TransactionConfidence confidenceProto = txProto.getConfidence();
+            TransactionConfidence confidence = tx.getConfidence();
+            readConfidence(params, tx, confidenceProto, confidence, txMap);
+        }
+
+        return new WalletTransaction(pool, tx);
+    }
+
+    /**
+     * Connects the outputs of the given transaction that aren't yet to the inputs that spend them. If partial, the
+     * spending transactions that haven't been read yet are skipped.
+     */
+    private static void connectOutputs(Transaction tx, Protos.Transaction txProto, Map<ByteString, Transaction> txMap,
+                                       boolean partial) throws UnreadableWalletException {
         for (int i = 0 ; i < tx.getOutputs().size() ; i++) {
             TransactionOutput output = tx.getOutputs().get(i);
             final Protos.TransactionOutput transactionOutput = txProto.getTransactionOutput(i);
-            if (transactionOutput.hasSpentByTransactionHash()) {
+            if (transactionOutput.hasSpentByTransactionHash() && output.getSpentBy() == null) {
                 final ByteString spentByTransactionHash = transactionOutput.getSpentByTransactionHash();
                 Transaction spendingTx = txMap.get(spentByTransactionHash);
                 if (spendingTx == null) {
+                    if (partial)
+                        continue;
                     throw new UnreadableWalletException(String.format(Locale.US, "Could not connect %s to %s",
                             tx.getTxId(), byteStringToHash(spentByTransactionHash)));
                 }
@@ -736,19 +926,12 @@ public class WalletProtobufSerializer {
                 input.connect(output);
             }
         }
-
-        if (txProto.hasConfidence()) {
-            Protos.TransactionConfidence confidenceProto = txProto.getConfidence();
-            TransactionConfidence confidence = tx.getConfidence();
-            readConfidence(params, tx, confidenceProto, confidence);
-        }
-
-        return new WalletTransaction(pool, tx);
     }
 
     private void readConfidence(final NetworkParameters params, final Transaction tx,
                                 final Protos.TransactionConfidence confidenceProto,
-                                final TransactionConfidence confidence) throws UnreadableWalletException {
+                                final TransactionConfidence confidence,
+                                final Map<ByteString, Transaction> txMap) throws UnreadableWalletException {
         // We are lenient here because tx confidence is not an essential part of the wallet.
         // If the tx has an unknown type of confidence, ignore.
         if (!confidenceProto.hasType()) {